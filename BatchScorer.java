@@ -0,0 +1,149 @@
+/*
+    BatchScorer.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.util.*;
+
+// Scores a batch of lines at a time into language-major rows, scores[language][line]. For each
+// order every line first gets (n-grams of the order x penalty) for all the languages with one
+// kernel call per language, then the languages in the rows of the n-grams get their
+// (score - penalty) corrections, the same sums in the same order as scoreSparse in TunPRF2.
+// The division by the number of n-grams and the search for the smallest score are done a
+// whole row at a time as well. Buffers are reused, so every thread needs a scorer of its own.
+
+class BatchScorer {
+
+	private static final ScoreKernel kernel = loadKernel();
+
+	private NgramExtractor extractor = new NgramExtractor();
+	private double[][] scores = new double[0][0];
+	private double[][] orderGrams = new double[1][0];
+	private int[][] gramIds = new int[1][0];
+	private int[][] gramStart = new int[1][0];
+	private double[] gramamounts = new double[0];
+	private double[] penalties = new double[0];
+	private double[] best = new double[0];
+	private double[] winners = new double[0];
+
+	static String getKernelName() {
+		return kernel.getClass().getName();
+	}
+
+// identified[0..to-from) gets the model id of the identified language, or -1 for none,
+// languageOrder holds the model ids of the languages in the order they are compared
+
+	void identify(String[] mysteryTexts, int from, int to, NgramModel model, NgramTrie trie, int[] languageOrder, int minCharNgram, int maxCharNgram, double penaltymodifier, int[] identified) {
+		int batch = to - from;
+		int languageAmount = model.getLanguageAmount();
+		ensureCapacity(languageAmount, maxCharNgram, batch);
+
+		Arrays.fill(gramamounts, 0, batch, 0.0);
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			gramStart[t][0] = 0;
+		}
+		for (int i = 0 ; i < batch ; i++) {
+			if (trie != null) {
+				extractor.lookUp(mysteryTexts[from + i], trie, minCharNgram, maxCharNgram);
+			}
+			else {
+				extractor.lookUp(mysteryTexts[from + i], model, minCharNgram, maxCharNgram);
+			}
+			for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+				int grams = extractor.getGramAmount(t);
+				int start = gramStart[t][i];
+				if (start + grams > gramIds[t].length) {
+					gramIds[t] = Arrays.copyOf(gramIds[t], Math.max(start + grams, gramIds[t].length * 2));
+				}
+				System.arraycopy(extractor.getGramIds(t), 0, gramIds[t], start, grams);
+				gramStart[t][i + 1] = start + grams;
+				orderGrams[t][i] = grams;
+				gramamounts[i] = gramamounts[i] + grams;
+			}
+		}
+
+		for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+			Arrays.fill(scores[kieli], 0, batch, 0.0);
+		}
+
+		for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				penalties[kieli] = model.getPenalty(kieli, t)*penaltymodifier;
+				if (Double.isInfinite(penalties[kieli])) {
+// 0 n-grams times an infinite penalty would be NaN, the lines without n-grams of the order get nothing
+					for (int i = 0 ; i < batch ; i++) {
+						if (orderGrams[t][i] > 0) {
+							scores[kieli][i] = scores[kieli][i] + orderGrams[t][i] * penalties[kieli];
+						}
+					}
+				}
+				else {
+					kernel.addScaled(scores[kieli], orderGrams[t], penalties[kieli], batch);
+				}
+			}
+			int[] ids = gramIds[t];
+			for (int i = 0 ; i < batch ; i++) {
+				for (int x = gramStart[t][i] ; x < gramStart[t][i + 1] ; x++) {
+					int gramid = ids[x];
+					if (gramid >= 0) {
+						for (int row = model.getRowStart(gramid) ; row < model.getRowEnd(gramid) ; row++) {
+							int kieli = model.getRowLanguage(row);
+							scores[kieli][i] = scores[kieli][i] + (model.getRowScore(row) - penalties[kieli]);
+						}
+					}
+				}
+			}
+		}
+
+		Arrays.fill(best, 0, batch, 1000.0);
+		Arrays.fill(winners, 0, batch, -1.0);
+		for (int kieli : languageOrder) {
+			kernel.divide(scores[kieli], gramamounts, batch);
+			kernel.keepSmaller(scores[kieli], best, winners, kieli, batch);
+		}
+		for (int i = 0 ; i < batch ; i++) {
+			identified[i] = (int) winners[i];
+		}
+	}
+
+	private void ensureCapacity(int languageAmount, int maxCharNgram, int batch) {
+		if (languageAmount > scores.length || batch > best.length) {
+			int size = Math.max(batch, best.length);
+			scores = new double[Math.max(languageAmount, scores.length)][size];
+			best = new double[size];
+			winners = new double[size];
+			gramamounts = new double[size];
+		}
+		if (languageAmount > penalties.length) {
+			penalties = new double[languageAmount];
+		}
+		if (maxCharNgram >= orderGrams.length || batch > orderGrams[0].length) {
+			int orders = Math.max(maxCharNgram + 1, orderGrams.length);
+			int size = Math.max(batch, orderGrams[0].length);
+			orderGrams = new double[orders][size];
+			gramStart = new int[orders][size + 1];
+			gramIds = Arrays.copyOf(gramIds, orders);
+			for (int t = 0 ; t < orders ; t++) {
+				if (gramIds[t] == null) {
+					gramIds[t] = new int[0];
+				}
+			}
+		}
+	}
+
+	private static ScoreKernel loadKernel() {
+		try {
+			return (ScoreKernel) Class.forName("VectorScoreKernel").getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable e) {
+			return new ScalarScoreKernel();
+		}
+	}
+}
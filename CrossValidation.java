@@ -0,0 +1,206 @@
+/*
+    CrossValidation.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.util.*;
+
+// k-fold cross-validation on the training file without training k models. Line i of the training
+// file belongs to fold i % k. While the full model is counted, the counts and typeAmounts of every
+// fold are also kept on their own, and the lines of a fold are identified with the full model
+// minus that fold: a count of the fold is subtracted from the count of the model when a gram is
+// scored and the typeAmounts of the fold from those of the model. The scores are the ones a model
+// counted from the other folds would give. A language which has nothing left at some order after
+// the subtraction is not a candidate, as it would not be in such a model.
+
+class CrossValidation {
+
+	private static final ThreadLocal<NgramExtractor> extractors = ThreadLocal.withInitial(NgramExtractor::new);
+
+	private final int foldAmount;
+	private final ArrayList<ArrayList<String>> foldLines = new ArrayList<>();
+	private final LongIntHashMap[] foldCounts;
+	private final Map<ArrayList<String>, Integer> foldSubsets = Collections.synchronizedMap(new IdentityHashMap<>());
+
+// [fold][language][order]
+
+	private long[][][] foldTypeAmounts;
+
+	CrossValidation(int foldAmount) {
+		this.foldAmount = foldAmount;
+		foldCounts = new LongIntHashMap[foldAmount];
+		foldTypeAmounts = new long[foldAmount][0][0];
+		for (int fold = 0 ; fold < foldAmount ; fold++) {
+			foldLines.add(new ArrayList<>());
+			foldCounts[fold] = new LongIntHashMap();
+		}
+	}
+
+	int getFoldAmount() {
+		return foldAmount;
+	}
+
+	int getFoldOf(int lineNumber) {
+		return lineNumber % foldAmount;
+	}
+
+// the held out lines of the fold, in the format of the development file
+
+	ArrayList<String> getLines(int fold) {
+		return foldLines.get(fold);
+	}
+
+// the fold whose lines, or a subset of them added with addSubset, these are, -1 for any other text
+
+	int getFold(ArrayList<String> lines) {
+		for (int fold = 0 ; fold < foldAmount ; fold++) {
+			if (foldLines.get(fold) == lines) {
+				return fold;
+			}
+		}
+		Integer fold = foldSubsets.get(lines);
+		if (fold == null) {
+			return -1;
+		}
+		return fold;
+	}
+
+// the lines of the subset have to be lines of the fold, they are identified without the fold
+
+	synchronized void addSubset(int fold, ArrayList<String> lines) {
+		if (lines != foldLines.get(fold)) {
+			foldSubsets.put(lines, fold);
+		}
+	}
+
+	boolean hasLines() {
+		return !foldLines.get(0).isEmpty();
+	}
+
+	void addLine(int fold, String line) {
+		foldLines.get(fold).add(line);
+	}
+
+	LongIntHashMap getCounts(int fold) {
+		return foldCounts[fold];
+	}
+
+	void resetTypeAmount(int language, int order) {
+		for (int fold = 0 ; fold < foldAmount ; fold++) {
+			ensure(fold, language, order);
+			foldTypeAmounts[fold][language][order] = 0;
+		}
+	}
+
+	void addTypeAmount(int fold, int language, int order, long amount) {
+		ensure(fold, language, order);
+		foldTypeAmounts[fold][language][order] += amount;
+	}
+
+	private long getTypeAmount(int fold, int language, int order) {
+		if (language >= foldTypeAmounts[fold].length || order >= foldTypeAmounts[fold][language].length) {
+			return 0;
+		}
+		return foldTypeAmounts[fold][language][order];
+	}
+
+	private void ensure(int fold, int language, int order) {
+		if (language >= foldTypeAmounts[fold].length) {
+			int oldLength = foldTypeAmounts[fold].length;
+			foldTypeAmounts[fold] = Arrays.copyOf(foldTypeAmounts[fold], language + 1);
+			for (int i = oldLength ; i <= language ; i++) {
+				foldTypeAmounts[fold][i] = new long[0];
+			}
+		}
+		if (order >= foldTypeAmounts[fold][language].length) {
+			foldTypeAmounts[fold][language] = Arrays.copyOf(foldTypeAmounts[fold][language], order + 1);
+		}
+	}
+
+// identifies the normalized lines of the fold like scoreExhaustive and the argmin of
+// identifyTextProdRelFreq would with a model counted without the fold
+
+	void identify(int fold, NgramModel model, NgramTrie trie, List<String> languageList, String[] mysteryTexts, int minCharNgram, int maxCharNgram, double penaltymodifier, String[] identifiedLanguages) {
+		int languageAmount = model.getLanguageAmount();
+		LongIntHashMap counts = foldCounts[fold];
+
+		long[][] typeAmounts = new long[maxCharNgram + 1][languageAmount];
+		double[][] penalties = new double[maxCharNgram + 1][languageAmount];
+		boolean[] trained = new boolean[languageAmount];
+		Arrays.fill(trained, true);
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				typeAmounts[t][kieli] = model.getTypeAmount(kieli, t) - getTypeAmount(fold, kieli, t);
+				penalties[t][kieli] = -Math.log10(1/(float) typeAmounts[t][kieli])*penaltymodifier;
+				if (typeAmounts[t][kieli] <= 0) {
+					trained[kieli] = false;
+				}
+			}
+		}
+
+		NgramExtractor extractor = extractors.get();
+		double[] languagescores = new double[languageAmount];
+		double[] hitscores = new double[languageAmount];
+		boolean[] hits = new boolean[languageAmount];
+
+		for (int line = 0 ; line < mysteryTexts.length ; line++) {
+			if (trie != null) {
+				extractor.lookUp(mysteryTexts[line], trie, minCharNgram, maxCharNgram);
+			}
+			else {
+				extractor.lookUp(mysteryTexts[line], model, minCharNgram, maxCharNgram);
+			}
+			Arrays.fill(languagescores, 0);
+			int gramamount = 0;
+			for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+				int[] gramids = extractor.getGramIds(t);
+				int grams = extractor.getGramAmount(t);
+				for (int x = 0 ; x < grams ; x++) {
+					gramamount = gramamount + 1;
+					int gramid = gramids[x];
+					if (gramid >= 0) {
+						for (int posting = model.firstPosting(gramid) ; posting >= 0 ; posting = model.nextPosting(posting)) {
+							int kieli = model.getPostingLanguage(posting);
+							int count = model.getPostingCount(posting) - Math.max(0, counts.get(((long) gramid << 32) | kieli));
+							if (count > 0) {
+								hits[kieli] = true;
+								hitscores[kieli] = -Math.log10((float) count / (float) typeAmounts[t][kieli]);
+							}
+						}
+					}
+					for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+						if (hits[kieli]) {
+							languagescores[kieli] = languagescores[kieli] + hitscores[kieli];
+							hits[kieli] = false;
+						}
+						else {
+							languagescores[kieli] = languagescores[kieli] + penalties[t][kieli];
+						}
+					}
+				}
+			}
+
+			double winningscore = 1000.0;
+			String mysterylanguage = "xxx";
+			for (String language : languageList) {
+				int kieli = model.getLanguageId(language);
+				if (kieli < 0 || !trained[kieli]) {
+					continue;
+				}
+				double languagescore = languagescores[kieli] / gramamount;
+				if (languagescore < winningscore) {
+					winningscore = languagescore;
+					mysterylanguage = language;
+				}
+			}
+			identifiedLanguages[line] = mysterylanguage;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+    GramFilter.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// A Bloom filter of the n-grams of every order. The String.hashCode() of short n-grams collides far
+// too often to key it, Aa and BB for one, so the NgramExtractor rolls a 64-bit key of its own for
+// the filter with roll(). An n-gram the filter does not have is surely not in the model,
+// so its look-up can be skipped and it gets the penalty straight away. The filter gets
+// bitsPerGram bits for every n-gram, rounded up to a power of two, and bitsPerGram * ln 2 probes.
+// The look-ups through the filter are counted for printReport().
+
+class GramFilter {
+
+	private final long[][] bits;
+	private final int[] masks;
+	private final int probes;
+	private final int[] gramAmounts;
+
+	private final LongAdder[] checked;
+	private final LongAdder[] rejected;
+	private final LongAdder[] falsePositives;
+
+	private GramFilter(int[] gramAmounts, int bitsPerGram) {
+		this.gramAmounts = gramAmounts;
+		bits = new long[gramAmounts.length][];
+		masks = new int[gramAmounts.length];
+		probes = Math.max(1, (int) Math.round(bitsPerGram * Math.log(2)));
+		checked = new LongAdder[gramAmounts.length];
+		rejected = new LongAdder[gramAmounts.length];
+		falsePositives = new LongAdder[gramAmounts.length];
+		for (int t = 0 ; t < gramAmounts.length ; t++) {
+			long size = 64;
+			while (size < (long) gramAmounts[t] * bitsPerGram && size < (1L << 31)) {
+				size = size * 2;
+			}
+			bits[t] = new long[(int) (size / 64)];
+			masks[t] = (int) (size - 1);
+			checked[t] = new LongAdder();
+			rejected[t] = new LongAdder();
+			falsePositives[t] = new LongAdder();
+		}
+	}
+
+	static GramFilter build(GramSource grams, int bitsPerGram) {
+		int[] gramAmounts = new int[grams.getMaxOrder() + 1];
+		for (int gram = 0 ; gram < grams.getGramAmount() ; gram++) {
+			gramAmounts[grams.getGramOrder(gram)]++;
+		}
+		GramFilter filter = new GramFilter(gramAmounts, bitsPerGram);
+		for (int gram = 0 ; gram < grams.getGramAmount() ; gram++) {
+			long key = 0;
+			for (int i = 0 ; i < grams.getGramOrder(gram) ; i++) {
+				key = roll(key, grams.getGramChar(gram, i));
+			}
+			filter.add(grams.getGramOrder(gram), key);
+		}
+		return filter;
+	}
+
+// the key of an n-gram one character longer
+
+	static long roll(long key, char c) {
+		return (key + c + 1) * 0x9E3779B97F4A7C15L;
+	}
+
+	private void add(int order, long key) {
+		long z = (key ^ (key >>> 31)) * 0xBF58476D1CE4E5B9L;
+		int first = (int) (z >>> 32);
+		int step = (int) z | 1;
+		long[] orderBits = bits[order];
+		for (int i = 0 ; i < probes ; i++) {
+			int bit = (first + i * step) & masks[order];
+			orderBits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+// false only when the n-gram is surely not in the model
+
+	boolean mightContain(int order, long key) {
+		if (order >= bits.length) {
+			return false;
+		}
+		long z = (key ^ (key >>> 31)) * 0xBF58476D1CE4E5B9L;
+		int first = (int) (z >>> 32);
+		int step = (int) z | 1;
+		long[] orderBits = bits[order];
+		for (int i = 0 ; i < probes ; i++) {
+			int bit = (first + i * step) & masks[order];
+			if ((orderBits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+// the extractor adds its counts once a line
+
+	void count(int order, int checkedGrams, int rejectedGrams, int falsePositiveGrams) {
+		if (order < checked.length) {
+			checked[order].add(checkedGrams);
+			rejected[order].add(rejectedGrams);
+			falsePositives[order].add(falsePositiveGrams);
+		}
+	}
+
+// so that the report covers only what is looked up from now on
+
+	void resetCounts() {
+		for (int t = 0 ; t < checked.length ; t++) {
+			checked[t].reset();
+			rejected[t].reset();
+			falsePositives[t].reset();
+		}
+	}
+
+	long memoryBytes() {
+		long bytes = 0;
+		for (long[] orderBits : bits) {
+			bytes = bytes + (long) orderBits.length * 8;
+		}
+		return bytes;
+	}
+
+// the false positive rate is the share of the n-grams not in the model that got through the
+// filter, the hit rate the share of all the n-grams looked up that were in the model
+
+	void printReport() {
+		System.out.println("Bloom filters of " + memoryBytes() + " bytes with " + probes + " probes:");
+		for (int t = 1 ; t < bits.length ; t++) {
+			long all = checked[t].sum();
+			if (all == 0) {
+				continue;
+			}
+			long misses = rejected[t].sum() + falsePositives[t].sum();
+			long hits = all - misses;
+			double falsePositiveRate = misses == 0 ? 0 : (double) falsePositives[t].sum() / misses;
+			System.out.printf(Locale.ROOT, "%d-grams: %d in the model, %d looked up, hit rate %.4f, %d rejected by the filter, false positive rate %.4f%n", t, gramAmounts[t], all, (double) hits / all, rejected[t].sum(), falsePositiveRate);
+		}
+	}
+}
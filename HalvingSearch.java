@@ -0,0 +1,353 @@
+/*
+    HalvingSearch.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Searches for the best (minCharNgram, maxCharNgram, smooth) with successive halving. Every round
+// the new combinations are first evaluated on the smallest stratified subset of the development
+// lines, the best 1/eta of them are evaluated again on the next bigger subset and so on until the
+// last ones are evaluated on all of the lines. Only the results on all of the lines are ranked.
+// The next round tries the neighbours of the ten best, the same neighbours the todo table of the
+// original search gets, leaving out every combination that has already been tried on any subset.
+// The search stops when the sum of the ten best stops growing, when there is nothing new to try,
+// or when the evaluation or time budget runs out.
+//
+// The lines can be in more than one set, the held out folds of cross-validation. Then every subset
+// takes the same share of every set, stratified inside the set, and the evaluator gets the subsets
+// of all the sets at once.
+
+class HalvingSearch {
+
+	interface Evaluator {
+		float evaluate(List<ArrayList<String>> lineSets, int minCharNgram, int maxCharNgram, float smooth);
+	}
+
+	interface ModelCreator {
+		void createModels(int charNgram);
+	}
+
+	private final Evaluator evaluator;
+	private final ModelCreator modelCreator;
+	private final int eta;
+	private final int threads;
+	private int minModelNgram;
+	private int maxModelNgram;
+
+// the subsets of every set, the smallest ones first, the last ones are all of the lines
+
+	private final List<List<ArrayList<String>>> subsets = new ArrayList<>();
+	private final List<Integer> subsetSizes = new ArrayList<>();
+	private final Set<Long> tried = new HashSet<>();
+	private final Map<Long, TreeSet<Float>> triedSmooths = new HashMap<>();
+	private final List<SearchResult> results = new ArrayList<>();
+	private SearchResult bestPartial;
+
+	private int evaluationBudget = 0;
+	private long timeBudget = 0;
+	private long started;
+	private final AtomicInteger evaluations = new AtomicInteger();
+	private final AtomicLong lineEvaluations = new AtomicLong();
+
+	HalvingSearch(List<ArrayList<String>> lineSets, Evaluator evaluator, ModelCreator modelCreator, int minModelNgram, int maxModelNgram, int eta, int minimumLines, int threads) {
+		this.evaluator = evaluator;
+		this.modelCreator = modelCreator;
+		this.minModelNgram = minModelNgram;
+		this.maxModelNgram = maxModelNgram;
+		this.eta = Math.max(2, eta);
+		this.threads = threads;
+
+		int total = 0;
+		for (ArrayList<String> lines : lineSets) {
+			total = total + lines.size();
+		}
+		List<Integer> sizes = new ArrayList<>();
+		int size = total;
+		while (size >= minimumLines && size < total || sizes.isEmpty()) {
+			sizes.add(0, size);
+			size = size / this.eta;
+		}
+		List<List<List<Integer>>> strata = new ArrayList<>();
+		for (ArrayList<String> lines : lineSets) {
+			strata.add(stratify(lines));
+		}
+		for (int lines : sizes) {
+			List<ArrayList<String>> rung = new ArrayList<>();
+			int rungSize = 0;
+			for (int set = 0 ; set < lineSets.size() ; set++) {
+				ArrayList<String> setLines = lineSets.get(set);
+				ArrayList<String> subset = subset(setLines, strata.get(set), (int) Math.round((double) lines * setLines.size() / total));
+				rung.add(subset);
+				rungSize = rungSize + subset.size();
+			}
+			subsets.add(rung);
+			subsetSizes.add(rungSize);
+		}
+	}
+
+// the subsets of the set, the smallest one first
+
+	List<ArrayList<String>> getSubsets(int lineSet) {
+		List<ArrayList<String>> setSubsets = new ArrayList<>();
+		for (List<ArrayList<String>> rung : subsets) {
+			setSubsets.add(rung.get(lineSet));
+		}
+		return setSubsets;
+	}
+
+// evaluationBudget is the number of evaluations on any subset and timeBudget milliseconds, 0 for no limit
+
+	void setBudget(int evaluationBudget, long timeBudget) {
+		this.evaluationBudget = evaluationBudget;
+		this.timeBudget = timeBudget;
+	}
+
+// the line numbers of every language in a fixed pseudo random order, the languages in the order they first appear
+
+	private static List<List<Integer>> stratify(ArrayList<String> lines) {
+		Map<String, List<Integer>> strata = new LinkedHashMap<>();
+		for (int i = 0 ; i < lines.size() ; i++) {
+			String language = lines.get(i).replaceAll("\t.*", "");
+			strata.computeIfAbsent(language, k -> new ArrayList<>()).add(i);
+		}
+		Random random = new Random(1);
+		List<List<Integer>> shuffled = new ArrayList<>(strata.values());
+		for (List<Integer> stratum : shuffled) {
+			Collections.shuffle(stratum, random);
+		}
+		return shuffled;
+	}
+
+// takes the same share of every language, at least one line each, so every smaller subset is
+// contained in the bigger ones. The lines keep their original order.
+
+	private static ArrayList<String> subset(ArrayList<String> lines, List<List<Integer>> strata, int size) {
+		if (size >= lines.size()) {
+			return lines;
+		}
+		List<Integer> chosen = new ArrayList<>();
+		for (List<Integer> stratum : strata) {
+			int amount = Math.max(1, (int) Math.round((double) stratum.size() * size / lines.size()));
+			chosen.addAll(stratum.subList(0, Math.min(amount, stratum.size())));
+		}
+		Collections.sort(chosen);
+		ArrayList<String> subset = new ArrayList<>(chosen.size());
+		for (int i : chosen) {
+			subset.add(lines.get(i));
+		}
+		return subset;
+	}
+
+// the best on the full subset, or the best on the largest subset reached when the budget ran out
+// before that, or null when not even the first round was evaluated
+
+	SearchResult search(List<SearchResult> initialCombinations) {
+		started = System.currentTimeMillis();
+		System.out.print("Successive halving on subsets of");
+		for (int subsetSize : subsetSizes) {
+			System.out.print(" " + subsetSize);
+		}
+		System.out.println(" lines.");
+
+		List<SearchResult> combinations = initialCombinations;
+		float oldTenbestTotal = -1;
+		while (true) {
+			combinations = untried(combinations);
+			if (combinations.isEmpty()) {
+				break;
+			}
+			halve(combinations);
+			List<SearchResult> tenbest = getTenBest();
+			printTenBest(tenbest);
+			float tenbestTotal = 0;
+			for (SearchResult result : tenbest) {
+				tenbestTotal = tenbestTotal + result.getMacroF1Score();
+			}
+			System.out.println("The total sum of f-scores of the ten best results so far are: " + tenbestTotal);
+			if (outOfBudget() || tenbestTotal <= oldTenbestTotal) {
+				break;
+			}
+			oldTenbestTotal = tenbestTotal;
+			combinations = neighbours(tenbest);
+		}
+		long fullLineEvaluations = (long) evaluations.get() * subsetSizes.get(subsetSizes.size() - 1);
+		System.out.println("The search made " + evaluations.get() + " evaluations in " + (System.currentTimeMillis() - started) + " ms, " + lineEvaluations.get() + " lines identified instead of " + fullLineEvaluations + ".");
+		List<SearchResult> tenbest = getTenBest();
+		if (tenbest.isEmpty()) {
+			return bestPartial;
+		}
+		return tenbest.get(0);
+	}
+
+	List<SearchResult> getTenBest() {
+		List<SearchResult> sorted = new ArrayList<>(results);
+		sorted.sort(SearchResult::compareBestFirst);
+		return sorted.subList(0, Math.min(10, sorted.size()));
+	}
+
+	private static void printTenBest(List<SearchResult> tenbest) {
+		System.out.println("Printing the ten best results so far.");
+		for (int i = 0 ; i < tenbest.size() ; i++) {
+			System.out.println((i + 1) + " " + tenbest.get(i));
+		}
+	}
+
+	private List<SearchResult> untried(List<SearchResult> combinations) {
+		List<SearchResult> untried = new ArrayList<>();
+		for (SearchResult combination : combinations) {
+			if (tried.add(combination.getKey())) {
+				long pair = SearchResult.key(combination.getMinCharNgram(), combination.getMaxCharNgram(), 0);
+				triedSmooths.computeIfAbsent(pair, k -> new TreeSet<>()).add(combination.getSmooth());
+				untried.add(combination);
+			}
+		}
+		return untried;
+	}
+
+	private void halve(List<SearchResult> combinations) {
+		for (SearchResult combination : combinations) {
+			while (combination.getMinCharNgram() < minModelNgram) {
+				minModelNgram--;
+				modelCreator.createModels(minModelNgram);
+			}
+			while (combination.getMaxCharNgram() > maxModelNgram) {
+				maxModelNgram++;
+				modelCreator.createModels(maxModelNgram);
+			}
+		}
+		int rung = 0;
+		while (!combinations.isEmpty()) {
+			if (combinations.size() == 1) {
+				rung = subsets.size() - 1;
+			}
+			List<ArrayList<String>> subset = subsets.get(rung);
+			int subsetSize = subsetSizes.get(rung);
+			List<SearchResult> evaluated = evaluate(combinations, subset, subsetSize);
+			if (evaluated.isEmpty()) {
+				return;
+			}
+			evaluated.sort(SearchResult::compareBestFirst);
+			if (bestPartial == null || bestPartial.getLineAmount() < subsetSize || bestPartial.getLineAmount() == subsetSize && SearchResult.compareBestFirst(evaluated.get(0), bestPartial) < 0) {
+				bestPartial = evaluated.get(0);
+			}
+			if (rung == subsets.size() - 1) {
+				results.addAll(evaluated);
+				return;
+			}
+			combinations = evaluated.subList(0, (evaluated.size() + eta - 1) / eta);
+			rung++;
+		}
+	}
+
+// the combinations which were evaluated before the budget ran out, in the order they were given
+
+	private List<SearchResult> evaluate(List<SearchResult> combinations, List<ArrayList<String>> subset, int subsetSize) {
+		List<Callable<SearchResult>> calls = new ArrayList<>();
+		for (SearchResult combination : combinations) {
+			calls.add(() -> {
+				if (outOfBudget()) {
+					return null;
+				}
+				evaluations.incrementAndGet();
+				lineEvaluations.addAndGet(subsetSize);
+				int x = combination.getMinCharNgram();
+				int y = combination.getMaxCharNgram();
+				float smooth = combination.getSmooth();
+				System.out.println("Evaluating: minCharNgram = " + x + ", maxCharNgram = " + y + ", smooth = " + smooth + " on " + subsetSize + " lines");
+				return combination.evaluated(evaluator.evaluate(subset, x, y, smooth), subsetSize);
+			});
+		}
+		List<SearchResult> evaluated = new ArrayList<>();
+		if (threads > 1) {
+			ExecutorService sweep = Executors.newFixedThreadPool(threads);
+			try {
+				for (Future<SearchResult> evaluation : sweep.invokeAll(calls)) {
+					if (evaluation.get() != null) {
+						evaluated.add(evaluation.get());
+					}
+				}
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Evaluating the combinations failed.", e.getCause());
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Evaluating the combinations failed.", e);
+			} finally {
+				sweep.shutdown();
+			}
+		}
+		else {
+			for (Callable<SearchResult> call : calls) {
+				try {
+					SearchResult result = call.call();
+					if (result != null) {
+						evaluated.add(result);
+					}
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException("Evaluating the combinations failed.", e);
+				}
+			}
+		}
+		return evaluated;
+	}
+
+	private boolean outOfBudget() {
+		if (evaluationBudget > 0 && evaluations.get() >= evaluationBudget) {
+			return true;
+		}
+		return timeBudget > 0 && System.currentTimeMillis() - started >= timeBudget;
+	}
+
+// the neighbours the original todo table would get: one smaller and one bigger minCharNgram and
+// maxCharNgram, and a smooth halfway to the nearest already tried smaller and bigger ones, or 0.5
+// away if there are none
+
+	private List<SearchResult> neighbours(List<SearchResult> tenbest) {
+		List<SearchResult> neighbours = new ArrayList<>();
+		for (SearchResult result : tenbest) {
+			int x = result.getMinCharNgram();
+			int y = result.getMaxCharNgram();
+			float smooth = result.getSmooth();
+
+			if (x > 1) {
+				neighbours.add(new SearchResult(x - 1, y, smooth));
+			}
+			if (x < y) {
+				neighbours.add(new SearchResult(x + 1, y, smooth));
+				neighbours.add(new SearchResult(x, y - 1, smooth));
+			}
+			neighbours.add(new SearchResult(x, y + 1, smooth));
+
+			TreeSet<Float> smooths = triedSmooths.get(SearchResult.key(x, y, 0));
+			Float nextsmallest = smooths.lower(smooth);
+			Float nextbiggest = smooths.higher(smooth);
+			if (nextsmallest == null) {
+				if (smooth - 0.5 > 0) {
+					neighbours.add(new SearchResult(x, y, smooth - (float) 0.5));
+				}
+			}
+			else if ((smooth - nextsmallest) > 0.1) {
+				neighbours.add(new SearchResult(x, y, (smooth + nextsmallest) / 2));
+			}
+			if (nextbiggest == null) {
+				if (smooth + 0.5 < 10) {
+					neighbours.add(new SearchResult(x, y, smooth + (float) 0.5));
+				}
+			}
+			else if ((nextbiggest - smooth) > 0.1) {
+				neighbours.add(new SearchResult(x, y, (smooth + nextbiggest) / 2));
+			}
+		}
+		return neighbours;
+	}
+}
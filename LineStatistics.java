@@ -0,0 +1,172 @@
+/*
+    LineStatistics.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Sufficient statistics of the lines of a development text. The score of a language for a line
+// is the sum over the orders of (the scores of the n-grams it has seen + the number of n-grams
+// it has missed * its penalty * smooth) divided by the number of n-grams, so for every line,
+// order and language it is enough to keep the sum of the hit scores and the number of hits,
+// and for every line and order the number of n-grams. Any (min, max, smooth) combination is then
+// a few multiply-adds per language. An order is gathered the first time it is asked for and
+// again only if the model has counted it again since.
+//
+// The hit scores of a language are summed apart from its penalties, so the score of a line is
+// the sum of scoreExhaustive added up in a different order. It can differ from it in the last
+// bits, and a line whose two best languages are that close can get the other one of them.
+//
+// Sweeps on many threads can identify with different orders at the same time. The arrays of an
+// order are never changed once gathered, and gather() replaces the arrays of arrays instead of
+// changing them, so identify() reads the ones it got from gather() without holding the lock.
+
+class LineStatistics {
+
+	private static final ThreadLocal<NgramExtractor> extractors = ThreadLocal.withInitial(NgramExtractor::new);
+
+	private ArrayList<String> text;
+	private boolean onlyAlphabetic;
+	private String[] mysteryTexts;
+	private String[] correctLanguages;
+	private int languageAmount = 0;
+
+// [order][line], [order][line * languageAmount + language] and [order][line * languageAmount + language]
+
+	private int[][] gramAmounts = new int[0][];
+	private double[][] hitSums = new double[0][];
+	private int[][] hitAmounts = new int[0][];
+	private int[] orderVersions = new int[0];
+
+	LineStatistics(ArrayList<String> text, boolean onlyAlphabetic, String[] mysteryTexts, String[] correctLanguages) {
+		this.text = text;
+		this.onlyAlphabetic = onlyAlphabetic;
+		this.mysteryTexts = mysteryTexts;
+		this.correctLanguages = correctLanguages;
+	}
+
+	boolean isFor(ArrayList<String> otherText, boolean otherOnlyAlphabetic) {
+		return text == otherText && onlyAlphabetic == otherOnlyAlphabetic;
+	}
+
+	String[] getCorrectLanguages() {
+		return correctLanguages;
+	}
+
+// identifiedLanguages gets the language with the smallest score for every line, comparing the
+// languages in the order of languageList, or xxx if none is below 1000
+
+	void identify(NgramModel model, NgramTrie trie, List<String> languageList, int minCharNgram, int maxCharNgram, double penaltymodifier, String[] identifiedLanguages, ForkJoinPool pool) {
+		int[][] gramAmounts;
+		double[][] hitSums;
+		int[][] hitAmounts;
+		int languageAmount;
+		synchronized (this) {
+			gather(model, trie, minCharNgram, maxCharNgram, pool);
+			gramAmounts = this.gramAmounts;
+			hitSums = this.hitSums;
+			hitAmounts = this.hitAmounts;
+			languageAmount = this.languageAmount;
+		}
+
+		int[] languageOrder = new int[languageList.size()];
+		for (int i = 0 ; i < languageOrder.length ; i++) {
+			languageOrder[i] = model.getLanguageId(languageList.get(i));
+		}
+		double[][] penalties = new double[maxCharNgram + 1][languageAmount];
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				penalties[t][kieli] = model.getPenalty(kieli, t)*penaltymodifier;
+			}
+		}
+
+		for (int line = 0 ; line < mysteryTexts.length ; line++) {
+			int gramamount = 0;
+			for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+				gramamount = gramamount + gramAmounts[t][line];
+			}
+			double winningscore = 1000.0;
+			String mysterylanguage = "xxx";
+			for (int kieli : languageOrder) {
+				double languagescore = 0;
+				int cell = line * languageAmount + kieli;
+				for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+					int grams = gramAmounts[t][line];
+					if (grams > 0) {
+						languagescore = languagescore + hitSums[t][cell] + (grams - hitAmounts[t][cell]) * penalties[t][kieli];
+					}
+				}
+				languagescore = languagescore / gramamount;
+				if (languagescore < winningscore) {
+					winningscore = languagescore;
+					mysterylanguage = model.getLanguage(kieli);
+				}
+			}
+			identifiedLanguages[line] = mysterylanguage;
+		}
+	}
+
+// called holding the lock, the lines are gone through on the threads of the pool
+
+	private void gather(NgramModel model, NgramTrie trie, int minCharNgram, int maxCharNgram, ForkJoinPool pool) {
+		if (model.getLanguageAmount() != languageAmount) {
+			languageAmount = model.getLanguageAmount();
+			gramAmounts = new int[0][];
+			hitSums = new double[0][];
+			hitAmounts = new int[0][];
+			orderVersions = new int[0];
+		}
+		int[][] grams = Arrays.copyOf(gramAmounts, Math.max(gramAmounts.length, maxCharNgram + 1));
+		double[][] sums = Arrays.copyOf(hitSums, grams.length);
+		int[][] amounts = Arrays.copyOf(hitAmounts, grams.length);
+		orderVersions = Arrays.copyOf(orderVersions, grams.length);
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			if (grams[t] == null || orderVersions[t] != model.getOrderVersion(t)) {
+				gatherOrder(model, trie, t, grams, sums, amounts, pool);
+				orderVersions[t] = model.getOrderVersion(t);
+			}
+		}
+		gramAmounts = grams;
+		hitSums = sums;
+		hitAmounts = amounts;
+	}
+
+	private void gatherOrder(NgramModel model, NgramTrie trie, int order, int[][] gramAmounts, double[][] hitSums, int[][] hitAmounts, ForkJoinPool pool) {
+		int[] grams = new int[mysteryTexts.length];
+		double[] sums = new double[mysteryTexts.length * languageAmount];
+		int[] amounts = new int[mysteryTexts.length * languageAmount];
+		pool.submit(() -> IntStream.range(0, mysteryTexts.length).parallel().forEach(line -> {
+			NgramExtractor extractor = extractors.get();
+			if (trie != null) {
+				extractor.lookUp(mysteryTexts[line], trie, order, order);
+			}
+			else {
+				extractor.lookUp(mysteryTexts[line], model, order, order);
+			}
+			int[] gramids = extractor.getGramIds(order);
+			grams[line] = extractor.getGramAmount(order);
+			int offset = line * languageAmount;
+			for (int x = 0 ; x < grams[line] ; x++) {
+				int gramid = gramids[x];
+				if (gramid >= 0) {
+					for (int row = model.getRowStart(gramid) ; row < model.getRowEnd(gramid) ; row++) {
+						sums[offset + model.getRowLanguage(row)] += model.getRowScore(row);
+						amounts[offset + model.getRowLanguage(row)]++;
+					}
+				}
+			}
+		})).join();
+		gramAmounts[order] = grams;
+		hitSums[order] = sums;
+		hitAmounts[order] = amounts;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+    LongIntHashMap.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.util.*;
+
+// Open addressing map from long keys to non-negative int values without boxing.
+// A value of -1 marks an empty slot, which is also what get() returns for a missing key.
+
+class LongIntHashMap {
+
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+
+	LongIntHashMap() {
+		this(16);
+	}
+
+	LongIntHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity = capacity * 2;
+		}
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, -1);
+	}
+
+	int size() {
+		return size;
+	}
+
+	int get(long key) {
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (values[slot] >= 0) {
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	void put(long key, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("LongIntHashMap values have to be non-negative.");
+		}
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (values[slot] >= 0) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		if (size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+	}
+
+// adds amount to the value of the key, a missing key counts as 0
+
+	int add(long key, int amount) {
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (values[slot] >= 0) {
+			if (keys[slot] == key) {
+				values[slot] += amount;
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		put(key, amount);
+		return amount;
+	}
+
+// slots can be walked with these, a slot is in use when its value is not -1
+
+	int capacity() {
+		return keys.length;
+	}
+
+	long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	int valueAt(int slot) {
+		return values[slot];
+	}
+
+	long memoryBytes() {
+		return keys.length * 12L;
+	}
+
+	private static int mix(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, -1);
+		size = 0;
+		for (int slot = 0 ; slot < oldKeys.length ; slot++) {
+			if (oldValues[slot] >= 0) {
+				put(oldKeys[slot], oldValues[slot]);
+			}
+		}
+	}
+}
@@ -0,0 +1,413 @@
+/*
+    MappedModel.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+// The finished scores of a model in a file laid out to be used where it is, memory-mapped and
+// read-only. Every classifier process mapping the same file shares the one copy in the page cache
+// and the heap only holds the language names. All the n-grams, also the short ones, are in one
+// open addressing table of gram id + 1 keyed by the String.hashCode() of the n-gram, so they can
+// be found with the hash the NgramExtractor rolls.
+//
+// The file is little-endian. A header of ints and longs is followed by the sections, each starting
+// at an offset divisible by 8:
+//
+//   int MAGIC, int VERSION, int languageAmount, int maxOrder, int gramAmount, int rowAmount,
+//   int slotAmount, int poolSize, then the long offset of each section in the order below
+//   languages        int byte length and the UTF-8 bytes of every language
+//   counted orders   a byte for orders 0..maxOrder, 1 if the order has been counted
+//   penalties        double[languageAmount * (maxOrder + 1)], -log10(1/typeAmount)
+//   slots            int[slotAmount]
+//   gram hashes      int[gramAmount]
+//   gram starts      int[gramAmount], index of the first char in the pool
+//   gram lengths     byte[gramAmount]
+//   row starts       int[gramAmount + 1]
+//   row languages    int[rowAmount]
+//   row scores       double[rowAmount]
+//   pool             char[poolSize]
+//   training         a byte 1 if onlyAlphabetic, int byte length and the UTF-8 bytes of the
+//                    fingerprint of the training file as in ModelFile
+//
+// Every section is mapped as a buffer of its own, and a buffer can be at most 2 GB, so the
+// biggest section, usually the row scores at 8 bytes a row, limits the model to about 268
+// million (gram, language) rows.
+
+class MappedModel implements ScoreRows, GramSource {
+
+	static final int MAGIC = 0x54505253;
+	static final int VERSION = 2;
+
+	private static final int SECTIONS = 12;
+	private static final int HEADER_BYTES = 8 * 4 + SECTIONS * 8;
+
+	private final ArrayList<String> languageList = new ArrayList<>();
+	private final HashMap<String, Integer> languageIds = new HashMap<>();
+	private final int maxOrder;
+	private final boolean[] countedOrders;
+	private final DoubleBuffer penalties;
+	private final IntBuffer slots;
+	private final int mask;
+	private final IntBuffer gramHash;
+	private final IntBuffer gramStart;
+	private final ByteBuffer gramLength;
+	private final IntBuffer rowStart;
+	private final IntBuffer rowLanguage;
+	private final DoubleBuffer rowScore;
+	private final CharBuffer pool;
+	private final boolean onlyAlphabetic;
+	private final String trainingFingerprint;
+
+	private MappedModel(FileChannel channel) throws IOException {
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException("Not a memory-mapped model file.");
+		}
+		if (header.getInt(4) != VERSION) {
+			throw new IOException("A memory-mapped model file of version " + header.getInt(4) + ", only version " + VERSION + " can be read.");
+		}
+		int languageAmount = header.getInt(8);
+		maxOrder = header.getInt(12);
+		int gramAmount = header.getInt(16);
+		int rowAmount = header.getInt(20);
+		int slotAmount = header.getInt(24);
+		int poolSize = header.getInt(28);
+		long[] offsets = new long[SECTIONS + 1];
+		for (int i = 0 ; i < SECTIONS ; i++) {
+			offsets[i] = header.getLong(32 + i * 8);
+		}
+		offsets[SECTIONS] = channel.size();
+
+		ByteBuffer languages = map(channel, offsets, 0);
+		for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+			byte[] name = new byte[languages.getInt()];
+			languages.get(name);
+			languageList.add(new String(name, StandardCharsets.UTF_8));
+			languageIds.put(languageList.get(kieli), kieli);
+		}
+		ByteBuffer counted = map(channel, offsets, 1);
+		countedOrders = new boolean[maxOrder + 1];
+		for (int t = 0 ; t <= maxOrder ; t++) {
+			countedOrders[t] = counted.get(t) != 0;
+		}
+		penalties = map(channel, offsets, 2).asDoubleBuffer();
+		slots = map(channel, offsets, 3).asIntBuffer();
+		mask = slotAmount - 1;
+		gramHash = map(channel, offsets, 4).asIntBuffer();
+		gramStart = map(channel, offsets, 5).asIntBuffer();
+		gramLength = map(channel, offsets, 6);
+		rowStart = map(channel, offsets, 7).asIntBuffer();
+		rowLanguage = map(channel, offsets, 8).asIntBuffer();
+		rowScore = map(channel, offsets, 9).asDoubleBuffer();
+		pool = map(channel, offsets, 10).asCharBuffer();
+		ByteBuffer training = map(channel, offsets, 11);
+		onlyAlphabetic = training.get() != 0;
+		byte[] fingerprint = new byte[training.getInt()];
+		training.get(fingerprint);
+		trainingFingerprint = new String(fingerprint, StandardCharsets.UTF_8);
+	}
+
+	private static ByteBuffer map(FileChannel channel, long[] offsets, int section) throws IOException {
+		long end = section + 1 < SECTIONS ? offsets[section + 1] : offsets[SECTIONS];
+		return channel.map(FileChannel.MapMode.READ_ONLY, offsets[section], end - offsets[section]).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+// the mapping stays valid after the channel has been closed
+
+	static MappedModel open(String fileName) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			return new MappedModel(channel);
+		}
+	}
+
+	List<String> getLanguageList() {
+		return languageList;
+	}
+
+	public int getLanguageAmount() {
+		return languageList.size();
+	}
+
+	String getLanguage(int language) {
+		return languageList.get(language);
+	}
+
+	int getLanguageId(String language) {
+		Integer id = languageIds.get(language);
+		if (id == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	boolean isOnlyAlphabetic() {
+		return onlyAlphabetic;
+	}
+
+	String getTrainingFingerprint() {
+		return trainingFingerprint;
+	}
+
+	boolean hasOrder(int order) {
+		return order >= 1 && order <= maxOrder && countedOrders[order];
+	}
+
+	public int getMaxOrder() {
+		return maxOrder;
+	}
+
+	public int getGramAmount() {
+		return gramHash.capacity();
+	}
+
+	public int getGramOrder(int gram) {
+		return gramLength.get(gram);
+	}
+
+	public char getGramChar(int gram, int i) {
+		return pool.get(gramStart.get(gram) + i);
+	}
+
+	public double getPenalty(int language, int order) {
+		return penalties.get(language * (maxOrder + 1) + order);
+	}
+
+	public int getRowStart(int gram) {
+		return rowStart.get(gram);
+	}
+
+	public int getRowEnd(int gram) {
+		return rowStart.get(gram + 1);
+	}
+
+	public int getRowLanguage(int row) {
+		return rowLanguage.get(row);
+	}
+
+	public double getRowScore(int row) {
+		return rowScore.get(row);
+	}
+
+// the hash of text[start, start+length) has to be the one String.hashCode() would give
+
+	int findGram(char[] text, int start, int length, int hash) {
+		int slot = mix(hash) & mask;
+		int id;
+		while ((id = slots.get(slot) - 1) >= 0) {
+			if (gramHash.get(id) == hash && gramLength.get(id) == length && sameGram(id, text, start, length)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean sameGram(int id, char[] text, int start, int length) {
+		int first = gramStart.get(id);
+		for (int i = 0 ; i < length ; i++) {
+			if (pool.get(first + i) != text[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+// writes the scores of a finished model
+
+	static void write(NgramModel model, boolean onlyAlphabetic, String trainingFingerprint, String fileName) throws IOException {
+		int languageAmount = model.getLanguageAmount();
+		int maxOrder = model.getMaxOrder();
+		int gramAmount = model.getGramAmount();
+		int rowAmount = model.getRowStart(gramAmount);
+		int slotAmount = 16;
+		while (slotAmount < gramAmount * 2) {
+			slotAmount = slotAmount * 2;
+		}
+		int[] gramHashes = new int[gramAmount];
+		int[] gramStarts = new int[gramAmount];
+		long poolSize = 0;
+		int[] slotTable = new int[slotAmount];
+		for (int gram = 0 ; gram < gramAmount ; gram++) {
+			int hash = 0;
+			for (int i = 0 ; i < model.getGramOrder(gram) ; i++) {
+				hash = 31 * hash + model.getGramChar(gram, i);
+			}
+			gramHashes[gram] = hash;
+			gramStarts[gram] = (int) poolSize;
+			poolSize = poolSize + model.getGramOrder(gram);
+			int slot = mix(hash) & (slotAmount - 1);
+			while (slotTable[slot] != 0) {
+				slot = (slot + 1) & (slotAmount - 1);
+			}
+			slotTable[slot] = gram + 1;
+		}
+		checkSection((long) rowAmount * 8, "row scores");
+		checkSection((long) slotAmount * 4, "slots");
+		checkSection(poolSize * 2, "pool");
+
+		File temporary = new File(fileName + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			SectionWriter out = new SectionWriter(channel);
+			long[] offsets = new long[SECTIONS];
+			out.skip(HEADER_BYTES);
+
+			offsets[0] = out.align();
+			for (String language : model.getLanguageList()) {
+				byte[] name = language.getBytes(StandardCharsets.UTF_8);
+				out.putInt(name.length);
+				for (byte b : name) {
+					out.putByte(b);
+				}
+			}
+			offsets[1] = out.align();
+			for (int t = 0 ; t <= maxOrder ; t++) {
+				out.putByte(model.hasOrder(t) ? 1 : 0);
+			}
+			offsets[2] = out.align();
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				for (int t = 0 ; t <= maxOrder ; t++) {
+					out.putDouble(model.getPenalty(kieli, t));
+				}
+			}
+			offsets[3] = out.align();
+			for (int slot : slotTable) {
+				out.putInt(slot);
+			}
+			offsets[4] = out.align();
+			for (int hash : gramHashes) {
+				out.putInt(hash);
+			}
+			offsets[5] = out.align();
+			for (int start : gramStarts) {
+				out.putInt(start);
+			}
+			offsets[6] = out.align();
+			for (int gram = 0 ; gram < gramAmount ; gram++) {
+				out.putByte(model.getGramOrder(gram));
+			}
+			offsets[7] = out.align();
+			for (int gram = 0 ; gram < gramAmount ; gram++) {
+				out.putInt(model.getRowStart(gram));
+			}
+			out.putInt(rowAmount);
+			offsets[8] = out.align();
+			for (int row = 0 ; row < rowAmount ; row++) {
+				out.putInt(model.getRowLanguage(row));
+			}
+			offsets[9] = out.align();
+			for (int row = 0 ; row < rowAmount ; row++) {
+				out.putDouble(model.getRowScore(row));
+			}
+			offsets[10] = out.align();
+			for (int gram = 0 ; gram < gramAmount ; gram++) {
+				for (int i = 0 ; i < model.getGramOrder(gram) ; i++) {
+					out.putChar(model.getGramChar(gram, i));
+				}
+			}
+			offsets[11] = out.align();
+			out.putByte(onlyAlphabetic ? 1 : 0);
+			byte[] fingerprint = trainingFingerprint.getBytes(StandardCharsets.UTF_8);
+			out.putInt(fingerprint.length);
+			for (byte b : fingerprint) {
+				out.putByte(b);
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(languageAmount).putInt(maxOrder).putInt(gramAmount).putInt(rowAmount).putInt(slotAmount).putInt((int) poolSize);
+			for (long offset : offsets) {
+				header.putLong(offset);
+			}
+			header.flip();
+			channel.write(header, 0);
+		}
+		Files.move(temporary.toPath(), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void checkSection(long bytes, String section) throws IOException {
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IOException("The " + section + " of the model would take " + bytes + " bytes, more than the 2 GB that can be mapped at once.");
+		}
+	}
+
+// writes little-endian numbers through one reused buffer, keeping track of the position in the file
+
+	private static class SectionWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		private long position = 0;
+
+		SectionWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void skip(int bytes) throws IOException {
+			for (int i = 0 ; i < bytes ; i++) {
+				putByte(0);
+			}
+		}
+
+		long align() throws IOException {
+			while (position % 8 != 0) {
+				putByte(0);
+			}
+			return position;
+		}
+
+		void putByte(int b) throws IOException {
+			ensure(1);
+			buffer.put((byte) b);
+			position++;
+		}
+
+		void putChar(char c) throws IOException {
+			ensure(2);
+			buffer.putChar(c);
+			position += 2;
+		}
+
+		void putInt(int i) throws IOException {
+			ensure(4);
+			buffer.putInt(i);
+			position += 4;
+		}
+
+		void putDouble(double d) throws IOException {
+			ensure(8);
+			buffer.putDouble(d);
+			position += 8;
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
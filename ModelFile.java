@@ -0,0 +1,292 @@
+/*
+    ModelFile.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// A counted model in a binary file, so it does not have to be counted from the training file on
+// every run. All numbers are big-endian as written by DataOutputStream.
+//
+//   int MAGIC, int VERSION
+//   boolean onlyAlphabetic
+//   writeUTF fingerprint of the training file, or MERGED or NONE
+//   int maxOrder, then for orders 1..maxOrder a boolean telling if the order has been counted
+//   int languageAmount, then the languages as writeUTF strings in the order of their ids
+//   for every language, for orders 1..maxOrder: long typeAmount
+//   gram records in the order of the gram ids:
+//     byte length, length chars, int postingAmount, postingAmount times (int language, int count)
+//   byte 0 ending the gram records
+//
+// The gram records come last and end with a marker instead of starting with their number, so
+// the file can be written while the grams are still being produced.
+//
+// The fingerprint tells which training file the model was counted from by its path, length and
+// modification time, so it can be compared without reading the file. A file merged from partial
+// models has MERGED instead, as there is no one training file to compare with, and the partial
+// models and the runs of the SpillingCounter have NONE.
+
+class ModelFile {
+
+	static final int MAGIC = 0x54505246;
+	static final int VERSION = 2;
+	static final String MERGED = "merged";
+	static final String NONE = "none";
+
+	private final boolean onlyAlphabetic;
+	private final String trainingFingerprint;
+	private final NgramModel model;
+
+	private ModelFile(NgramModel model, boolean onlyAlphabetic, String trainingFingerprint) {
+		this.model = model;
+		this.onlyAlphabetic = onlyAlphabetic;
+		this.trainingFingerprint = trainingFingerprint;
+	}
+
+	NgramModel getModel() {
+		return model;
+	}
+
+	boolean isOnlyAlphabetic() {
+		return onlyAlphabetic;
+	}
+
+	String getTrainingFingerprint() {
+		return trainingFingerprint;
+	}
+
+	static String fingerprint(String trainFile) {
+		File file = new File(trainFile);
+		return file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified();
+	}
+
+// writes to a temporary file first, so an interrupted save leaves any older file as it was
+
+	static void save(NgramModel model, boolean onlyAlphabetic, String trainingFingerprint, String fileName) throws IOException {
+		File temporary = new File(fileName + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+			writeHeader(out, onlyAlphabetic, trainingFingerprint, model);
+			int[] languages = new int[model.getLanguageAmount()];
+			int[] counts = new int[model.getLanguageAmount()];
+			char[] chars = new char[Byte.MAX_VALUE];
+			for (int gram = 0 ; gram < model.getGramAmount() ; gram++) {
+				int postings = 0;
+				for (int posting = model.firstPosting(gram) ; posting >= 0 ; posting = model.nextPosting(posting)) {
+					languages[postings] = model.getPostingLanguage(posting);
+					counts[postings] = model.getPostingCount(posting);
+					postings++;
+				}
+				int length = model.getGramOrder(gram);
+				for (int i = 0 ; i < length ; i++) {
+					chars[i] = model.getGramChar(gram, i);
+				}
+				writeGram(out, chars, length, languages, counts, postings);
+			}
+			out.writeByte(0);
+		}
+		Files.move(temporary.toPath(), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+// everything but the gram records, the typeAmounts and counted orders of the model
+
+	static void writeHeader(DataOutputStream out, boolean onlyAlphabetic, String trainingFingerprint, NgramModel model) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeBoolean(onlyAlphabetic);
+		out.writeUTF(trainingFingerprint);
+		out.writeInt(model.getMaxOrder());
+		for (int t = 1 ; t <= model.getMaxOrder() ; t++) {
+			out.writeBoolean(model.hasOrder(t));
+		}
+		out.writeInt(model.getLanguageAmount());
+		for (int kieli = 0 ; kieli < model.getLanguageAmount() ; kieli++) {
+			out.writeUTF(model.getLanguage(kieli));
+		}
+		for (int kieli = 0 ; kieli < model.getLanguageAmount() ; kieli++) {
+			for (int t = 1 ; t <= model.getMaxOrder() ; t++) {
+				out.writeLong(model.getTypeAmount(kieli, t));
+			}
+		}
+	}
+
+	static void writeGram(DataOutputStream out, char[] chars, int length, int[] languages, int[] counts, int postings) throws IOException {
+		out.writeByte(length);
+		for (int i = 0 ; i < length ; i++) {
+			out.writeChar(chars[i]);
+		}
+		out.writeInt(postings);
+		for (int i = 0 ; i < postings ; i++) {
+			out.writeInt(languages[i]);
+			out.writeInt(counts[i]);
+		}
+	}
+
+// the model comes back with the same language and gram ids it was saved with, to be finished
+
+	static ModelFile load(String fileName) throws IOException {
+		try (GramReader in = new GramReader(new File(fileName))) {
+			NgramModel model = new NgramModel();
+			for (int kieli = 0 ; kieli < in.getLanguageAmount() ; kieli++) {
+				model.addLanguage(in.getLanguage(kieli));
+			}
+			model.ensureOrder(in.getMaxOrder());
+			for (int kieli = 0 ; kieli < in.getLanguageAmount() ; kieli++) {
+				for (int t = 1 ; t <= in.getMaxOrder() ; t++) {
+					if (in.hasOrder(t)) {
+						model.addTypeAmount(kieli, t, in.getTypeAmount(kieli, t));
+					}
+				}
+			}
+			while (in.next()) {
+				int gram = model.addGram(in.getChars(), 0, in.getLength(), in.getHash());
+				for (int i = 0 ; i < in.getPostingAmount() ; i++) {
+					model.addCount(gram, in.getPostingLanguage(i), in.getPostingCount(i));
+				}
+			}
+			return new ModelFile(model, in.isOnlyAlphabetic(), in.getTrainingFingerprint());
+		}
+	}
+
+// reads the header of a model file when opened and then its gram records one at a time, so
+// files bigger than the heap can be gone through
+
+	static class GramReader implements Closeable {
+
+		private final DataInputStream in;
+		private final boolean onlyAlphabetic;
+		private final String trainingFingerprint;
+		private final int maxOrder;
+		private final boolean[] counted;
+		private final List<String> languages = new ArrayList<>();
+		private final long[][] typeAmounts;
+
+		private final char[] chars = new char[Byte.MAX_VALUE];
+		private int length = 0;
+		private int hash = 0;
+		private int[] postingLanguages = new int[0];
+		private int[] postingCounts = new int[0];
+		private int postings = 0;
+
+		GramReader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException(file + " is not a model file.");
+				}
+				int version = in.readInt();
+				if (version != VERSION) {
+					throw new IOException(file + " is a model file of version " + version + ", only version " + VERSION + " can be read.");
+				}
+				onlyAlphabetic = in.readBoolean();
+				trainingFingerprint = in.readUTF();
+				maxOrder = in.readInt();
+				counted = new boolean[maxOrder + 1];
+				for (int t = 1 ; t <= maxOrder ; t++) {
+					counted[t] = in.readBoolean();
+				}
+				int languageAmount = in.readInt();
+				for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+					languages.add(in.readUTF());
+				}
+				typeAmounts = new long[languageAmount][maxOrder + 1];
+				for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+					for (int t = 1 ; t <= maxOrder ; t++) {
+						typeAmounts[kieli][t] = in.readLong();
+					}
+				}
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		boolean isOnlyAlphabetic() {
+			return onlyAlphabetic;
+		}
+
+		String getTrainingFingerprint() {
+			return trainingFingerprint;
+		}
+
+		int getMaxOrder() {
+			return maxOrder;
+		}
+
+		boolean hasOrder(int order) {
+			return order >= 1 && order <= maxOrder && counted[order];
+		}
+
+		int getLanguageAmount() {
+			return languages.size();
+		}
+
+		String getLanguage(int language) {
+			return languages.get(language);
+		}
+
+		long getTypeAmount(int language, int order) {
+			return typeAmounts[language][order];
+		}
+
+// false after the last gram record
+
+		boolean next() throws IOException {
+			length = in.readUnsignedByte();
+			if (length == 0) {
+				return false;
+			}
+			hash = 0;
+			for (int i = 0 ; i < length ; i++) {
+				chars[i] = in.readChar();
+				hash = 31 * hash + chars[i];
+			}
+			postings = in.readInt();
+			if (postings > postingLanguages.length) {
+				postingLanguages = new int[postings];
+				postingCounts = new int[postings];
+			}
+			for (int i = 0 ; i < postings ; i++) {
+				postingLanguages[i] = in.readInt();
+				postingCounts[i] = in.readInt();
+			}
+			return true;
+		}
+
+		char[] getChars() {
+			return chars;
+		}
+
+		int getLength() {
+			return length;
+		}
+
+		int getHash() {
+			return hash;
+		}
+
+		int getPostingAmount() {
+			return postings;
+		}
+
+		int getPostingLanguage(int posting) {
+			return postingLanguages[posting];
+		}
+
+		int getPostingCount(int posting) {
+			return postingCounts[posting];
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+    NgramExtractor.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+import java.util.Arrays;
+
+// Walks a normalized text once and finds the n-grams of all the orders at every position.
+// The hash of the n-gram starting at a position is rolled one character at a time the same
+// way String.hashCode() does it, and so is the packed key of the short ones, so no substrings
+// are created. The buffers are reused from line to line, so every thread needs an extractor of
+// its own.
+
+class NgramExtractor {
+
+	private char[] text = new char[256];
+	private int length = 0;
+	private int[][] gramIds = new int[1][256];
+
+// the n-grams of each order the filter of the last look-up rejected and let through in vain
+
+	private int[] rejected = new int[1];
+	private int[] falsePositives = new int[1];
+
+	int getLength() {
+		return length;
+	}
+
+// the normalized text of the last look-up, getLength() characters of it
+
+	char[] getText() {
+		return text;
+	}
+
+	int getGramAmount(int order) {
+		if (length < order) {
+			return 0;
+		}
+		return length - order + 1;
+	}
+
+// gram ids of the order, -1 when the n-gram is not in the model
+
+	int[] getGramIds(int order) {
+		return gramIds[order];
+	}
+
+	void lookUp(String mysteryText, NgramModel model, int minCharNgram, int maxCharNgram) {
+		lookUp(mysteryText, model, null, minCharNgram, maxCharNgram);
+	}
+
+// with a filter the n-grams it does not have are not looked up in the model at all
+
+	void lookUp(String mysteryText, NgramModel model, GramFilter filter, int minCharNgram, int maxCharNgram) {
+		setText(mysteryText, maxCharNgram);
+		Arrays.fill(rejected, 0);
+		Arrays.fill(falsePositives, 0);
+		for (int x = 0 ; x < length ; x++) {
+			int hash = 0;
+			long key = 0;
+			long filterKey = 0;
+			int last = Math.min(maxCharNgram, length - x);
+			for (int t = 1 ; t <= last ; t++) {
+				hash = 31 * hash + text[x + t - 1];
+				key = (key << 16) | text[x + t - 1];
+				if (filter != null) {
+					filterKey = GramFilter.roll(filterKey, text[x + t - 1]);
+				}
+				if (t >= minCharNgram) {
+					if (filter != null && !filter.mightContain(t, filterKey)) {
+						gramIds[t][x] = -1;
+						rejected[t]++;
+					}
+					else {
+						if (t <= NgramModel.PACKED_ORDER) {
+							gramIds[t][x] = model.findPackedGram(t, key);
+						}
+						else {
+							gramIds[t][x] = model.findGram(text, x, t, hash);
+						}
+						if (gramIds[t][x] < 0) {
+							falsePositives[t]++;
+						}
+					}
+				}
+			}
+		}
+		if (filter != null) {
+			countFiltered(filter, minCharNgram, maxCharNgram);
+		}
+	}
+
+	void lookUp(String mysteryText, MappedModel model, GramFilter filter, int minCharNgram, int maxCharNgram) {
+		setText(mysteryText, maxCharNgram);
+		Arrays.fill(rejected, 0);
+		Arrays.fill(falsePositives, 0);
+		for (int x = 0 ; x < length ; x++) {
+			int hash = 0;
+			long filterKey = 0;
+			int last = Math.min(maxCharNgram, length - x);
+			for (int t = 1 ; t <= last ; t++) {
+				hash = 31 * hash + text[x + t - 1];
+				if (filter != null) {
+					filterKey = GramFilter.roll(filterKey, text[x + t - 1]);
+				}
+				if (t >= minCharNgram) {
+					if (filter != null && !filter.mightContain(t, filterKey)) {
+						gramIds[t][x] = -1;
+						rejected[t]++;
+					}
+					else {
+						gramIds[t][x] = model.findGram(text, x, t, hash);
+						if (gramIds[t][x] < 0) {
+							falsePositives[t]++;
+						}
+					}
+				}
+			}
+		}
+		if (filter != null) {
+			countFiltered(filter, minCharNgram, maxCharNgram);
+		}
+	}
+
+// without a filter the misses counted as false positives are not used for anything
+
+	private void countFiltered(GramFilter filter, int minCharNgram, int maxCharNgram) {
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			filter.count(t, getGramAmount(t), rejected[t], falsePositives[t]);
+			rejected[t] = 0;
+			falsePositives[t] = 0;
+		}
+	}
+
+	void lookUp(String mysteryText, NgramTrie trie, int minCharNgram, int maxCharNgram) {
+		setText(mysteryText, maxCharNgram);
+		for (int x = 0 ; x < length ; x++) {
+			int node = 0;
+			int last = Math.min(maxCharNgram, length - x);
+			for (int t = 1 ; t <= last ; t++) {
+				if (node >= 0) {
+					node = trie.child(node, text[x + t - 1]);
+				}
+				if (t >= minCharNgram) {
+					gramIds[t][x] = node >= 0 ? trie.getGram(node) : -1;
+				}
+			}
+		}
+	}
+
+// adds the n-grams of the text to the model, returns the number of new (gram, language) pairs
+
+	int count(String trainText, NgramModel model, int language, int minCharNgram, int maxCharNgram) {
+		return count(trainText, model, language, minCharNgram, maxCharNgram, null);
+	}
+
+// also counts the grams into foldCounts, keyed by (gram << 32) | language, when it is given
+
+	int count(String trainText, NgramModel model, int language, int minCharNgram, int maxCharNgram, LongIntHashMap foldCounts) {
+		setText(trainText, 0);
+		return count(text, 0, model, language, minCharNgram, maxCharNgram, foldCounts);
+	}
+
+// counts text[start, start+textLength) of a buffer shared by many texts, without copying it
+
+	int count(char[] buffer, int start, int textLength, NgramModel model, int language, int minCharNgram, int maxCharNgram, LongIntHashMap foldCounts) {
+		length = textLength;
+		return count(buffer, start, model, language, minCharNgram, maxCharNgram, foldCounts);
+	}
+
+	private int count(char[] buffer, int start, NgramModel model, int language, int minCharNgram, int maxCharNgram, LongIntHashMap foldCounts) {
+		int newGrams = 0;
+		for (int x = 0 ; x < length ; x++) {
+			int hash = 0;
+			long key = 0;
+			int last = Math.min(maxCharNgram, length - x);
+			for (int t = 1 ; t <= last ; t++) {
+				hash = 31 * hash + buffer[start + x + t - 1];
+				key = (key << 16) | buffer[start + x + t - 1];
+				if (t >= minCharNgram) {
+					int gram;
+					if (t <= NgramModel.PACKED_ORDER) {
+						gram = model.addPackedGram(t, key);
+					}
+					else {
+						gram = model.addGram(buffer, start + x, t, hash);
+					}
+					if (model.addCount(gram, language, 1)) {
+						newGrams++;
+					}
+					if (foldCounts != null) {
+						foldCounts.add(((long) gram << 32) | language, 1);
+					}
+				}
+			}
+		}
+		for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+			model.addTypeAmount(language, t, getGramAmount(t));
+		}
+		return newGrams;
+	}
+
+// adds the n-grams of the orders of the sketch to it instead of a model, only their typeAmounts
+// go to the model
+
+	void sketch(String trainText, SketchModel sketch, NgramModel model, int language) {
+		setText(trainText, 0);
+		for (int x = 0 ; x < length ; x++) {
+			long key = 0;
+			int last = Math.min(sketch.getToOrder(), length - x);
+			for (int t = 1 ; t <= last ; t++) {
+				key = GramFilter.roll(key, text[x + t - 1]);
+				if (t >= sketch.getFromOrder()) {
+					sketch.add(t, key, language, 1);
+				}
+			}
+		}
+		for (int t = sketch.getToOrder() ; t >= sketch.getFromOrder() ; t--) {
+			model.addTypeAmount(language, t, getGramAmount(t));
+		}
+	}
+
+	private void setText(String newText, int maxCharNgram) {
+		length = newText.length();
+		if (length > text.length) {
+			text = new char[Math.max(length, text.length * 2)];
+		}
+		newText.getChars(0, length, text, 0);
+		if (maxCharNgram >= gramIds.length || length > gramIds[0].length) {
+			gramIds = new int[Math.max(maxCharNgram + 1, gramIds.length)][Math.max(length, gramIds[0].length * 2)];
+		}
+		if (maxCharNgram >= rejected.length) {
+			rejected = new int[maxCharNgram + 1];
+			falsePositives = new int[maxCharNgram + 1];
+		}
+	}
+}
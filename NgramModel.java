@@ -0,0 +1,574 @@
+/*
+    NgramModel.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+import java.util.*;
+
+// Character n-gram language models for all the languages, kept in primitive arrays.
+// Every language gets an int index in the order it is first seen and every n-gram
+// an int id from the hash-indexed vocabulary. The counts of an n-gram are a chain of
+// (language, count) postings, so n-grams seen in only a few languages stay small.
+
+class NgramModel implements ScoreRows, GramSource {
+
+	private ArrayList<String> languageList = new ArrayList<>();
+	private HashMap<String, Integer> languageIds = new HashMap<>();
+
+// vocabulary. N-grams of up to PACKED_ORDER characters are found by their characters packed
+// into a long, one map for each order. Longer ones are in an open addressing table holding
+// gram id + 1 (0 is an empty slot). The characters of the longer n-grams are kept in the pool,
+// a packed n-gram has no characters there and keeps its key in gramStart and gramHash instead,
+// the high 32 bits in gramStart.
+
+	static final int PACKED_ORDER = 4;
+
+	private LongIntHashMap[] packedGrams = new LongIntHashMap[PACKED_ORDER + 1];
+	private int[] slots = new int[1 << 12];
+	private int slotAmount = 0;
+	private int[] gramHash = new int[1 << 10];
+	private int[] gramStart = new int[1 << 10];
+	private byte[] gramLength = new byte[1 << 10];
+	private char[] pool = new char[1 << 12];
+	private int poolSize = 0;
+	private int gramAmount = 0;
+
+// postings, gramHead and postingNext are -1 at the end of a chain
+
+	private int[] gramHead = new int[1 << 10];
+	private int[] postingLanguage = new int[1 << 10];
+	private int[] postingCount = new int[1 << 10];
+	private int[] postingNext = new int[1 << 10];
+	private int postingAmount = 0;
+
+// typeAmounts[language][order], the number of n-grams of each order seen for the language
+
+	private long[][] typeAmounts = new long[0][];
+	private boolean[] countedOrders = new boolean[1];
+	private int[] orderVersions = new int[1];
+	private int maxOrder = 0;
+
+// scores made ready by finish(), rows of (language, -log10 relative frequency) for every gram
+// and the base penalty -log10(1/typeAmount) for every language and order, to be multiplied
+// by the smoothing value of the evaluation
+
+	private int[] rowStart = new int[1];
+	private int[] rowLanguage = new int[0];
+	private double[] rowScore = new double[0];
+	private double[][] penalties = new double[0][];
+	private double[][] minScores = new double[0][];
+
+	List<String> getLanguageList() {
+		return languageList;
+	}
+
+	public int getLanguageAmount() {
+		return languageList.size();
+	}
+
+	String getLanguage(int language) {
+		return languageList.get(language);
+	}
+
+	int getLanguageId(String language) {
+		Integer id = languageIds.get(language);
+		if (id == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	int addLanguage(String language) {
+		Integer id = languageIds.get(language);
+		if (id != null) {
+			return id;
+		}
+		languageList.add(language);
+		languageIds.put(language, languageList.size() - 1);
+		typeAmounts = Arrays.copyOf(typeAmounts, languageList.size());
+		typeAmounts[languageList.size() - 1] = new long[maxOrder + 1];
+		return languageList.size() - 1;
+	}
+
+	public int getMaxOrder() {
+		return maxOrder;
+	}
+
+	long getTypeAmount(int language, int order) {
+		if (order > maxOrder) {
+			return 0;
+		}
+		return typeAmounts[language][order];
+	}
+
+	void addTypeAmount(int language, int order, long amount) {
+		ensureOrder(order);
+		typeAmounts[language][order] += amount;
+		countedOrders[order] = true;
+		orderVersions[order]++;
+	}
+
+// counting an order again starts its typeAmounts from 0, as the TreeMap version did
+
+	void resetTypeAmount(int language, int order) {
+		ensureOrder(order);
+		typeAmounts[language][order] = 0;
+		orderVersions[order]++;
+	}
+
+// changes whenever the counts of the order change, for caches of anything derived from them
+
+	int getOrderVersion(int order) {
+		if (order > maxOrder) {
+			return 0;
+		}
+		return orderVersions[order];
+	}
+
+	boolean hasOrder(int order) {
+		return order >= 1 && order <= maxOrder && countedOrders[order];
+	}
+
+	void ensureOrder(int order) {
+		if (order > maxOrder) {
+			maxOrder = order;
+			countedOrders = Arrays.copyOf(countedOrders, maxOrder + 1);
+			orderVersions = Arrays.copyOf(orderVersions, maxOrder + 1);
+			for (int i = 0 ; i < typeAmounts.length ; i++) {
+				typeAmounts[i] = Arrays.copyOf(typeAmounts[i], maxOrder + 1);
+			}
+		}
+	}
+
+	public int getGramAmount() {
+		return gramAmount;
+	}
+
+	int getPostingAmount() {
+		return postingAmount;
+	}
+
+	public int getGramOrder(int gram) {
+		return gramLength[gram];
+	}
+
+	public char getGramChar(int gram, int i) {
+		if (gramLength[gram] <= PACKED_ORDER) {
+			return (char) (packedKey(gram) >>> (16 * (gramLength[gram] - 1 - i)));
+		}
+		return pool[gramStart[gram] + i];
+	}
+
+	String getGram(int gram) {
+		if (gramLength[gram] <= PACKED_ORDER) {
+			char[] chars = new char[gramLength[gram]];
+			for (int i = 0 ; i < chars.length ; i++) {
+				chars[i] = getGramChar(gram, i);
+			}
+			return new String(chars);
+		}
+		return new String(pool, gramStart[gram], gramLength[gram]);
+	}
+
+	private long packedKey(int gram) {
+		return ((long) gramStart[gram] << 32) | (gramHash[gram] & 0xFFFFFFFFL);
+	}
+
+	NgramModel() {
+		for (int order = 1 ; order <= PACKED_ORDER ; order++) {
+			packedGrams[order] = new LongIntHashMap();
+		}
+	}
+
+	static long pack(char[] text, int start, int length) {
+		long key = 0;
+		for (int i = 0 ; i < length ; i++) {
+			key = (key << 16) | text[start + i];
+		}
+		return key;
+	}
+
+	static long pack(String gram) {
+		long key = 0;
+		for (int i = 0 ; i < gram.length() ; i++) {
+			key = (key << 16) | gram.charAt(i);
+		}
+		return key;
+	}
+
+// key from pack(), which can also be rolled one character at a time as (key << 16) | c
+
+	int findPackedGram(int length, long key) {
+		return packedGrams[length].get(key);
+	}
+
+	int findGram(String gram) {
+		if (gram.length() <= PACKED_ORDER) {
+			return findPackedGram(gram.length(), pack(gram));
+		}
+		int hash = gram.hashCode();
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (gramHash[id] == hash && sameGram(id, gram)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+// the hash of text[start, start+length) has to be the one String.hashCode() would give,
+// so that it can be rolled one character at a time by the NgramExtractor
+
+	int findGram(char[] text, int start, int length, int hash) {
+		if (length <= PACKED_ORDER) {
+			return findPackedGram(length, pack(text, start, length));
+		}
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+		while (slots[slot] != 0) {
+			int id = slots[slot] - 1;
+			if (gramHash[id] == hash && sameGram(id, text, start, length)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	int addGram(String gram) {
+		if (gram.length() <= PACKED_ORDER) {
+			return addPackedGram(gram.length(), pack(gram));
+		}
+		int id = findGram(gram);
+		if (id >= 0) {
+			return id;
+		}
+		id = newPooledGram(gram.length(), gram.hashCode());
+		gram.getChars(0, gram.length(), pool, gramStart[id]);
+		return id;
+	}
+
+	int addGram(char[] text, int start, int length, int hash) {
+		if (length <= PACKED_ORDER) {
+			return addPackedGram(length, pack(text, start, length));
+		}
+		int id = findGram(text, start, length, hash);
+		if (id >= 0) {
+			return id;
+		}
+		id = newPooledGram(length, hash);
+		System.arraycopy(text, start, pool, gramStart[id], length);
+		return id;
+	}
+
+// key from pack() or rolled like for findPackedGram()
+
+	int addPackedGram(int length, long key) {
+		int id = packedGrams[length].get(key);
+		if (id >= 0) {
+			return id;
+		}
+		id = newGram(length);
+		gramStart[id] = (int) (key >>> 32);
+		gramHash[id] = (int) key;
+		packedGrams[length].put(key, id);
+		return id;
+	}
+
+	private int newPooledGram(int length, int hash) {
+		int id = newGram(length);
+		ensurePoolCapacity(poolSize + length);
+		gramStart[id] = poolSize;
+		gramHash[id] = hash;
+		poolSize += length;
+		slotAmount++;
+		if (slotAmount * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		else {
+			insertSlot(id);
+		}
+		return id;
+	}
+
+	private int newGram(int length) {
+		if (length > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("Character n-grams longer than " + Byte.MAX_VALUE + " are not supported.");
+		}
+		int id = gramAmount;
+		ensureGramCapacity(id + 1);
+		gramLength[id] = (byte) length;
+		gramHead[id] = -1;
+		gramAmount++;
+		return id;
+	}
+
+// returns true when the language had not been seen with the gram before
+
+	boolean addCount(int gram, int language, int amount) {
+		int last = -1;
+		int posting = gramHead[gram];
+		while (posting >= 0) {
+			if (postingLanguage[posting] == language) {
+				postingCount[posting] += amount;
+				return false;
+			}
+			last = posting;
+			posting = postingNext[posting];
+		}
+		ensurePostingCapacity(postingAmount + 1);
+		posting = postingAmount++;
+		postingLanguage[posting] = language;
+		postingCount[posting] = amount;
+		postingNext[posting] = -1;
+		if (last >= 0) {
+			postingNext[last] = posting;
+		}
+		else {
+			gramHead[gram] = posting;
+		}
+		return true;
+	}
+
+// adds the orders minOrder..maxOrder counted into another model the same way counting them again
+// with createModels would: the typeAmounts of the languages of the other model start from 0 and
+// the counts are added to the ones already here
+
+	void mergeOrders(NgramModel other, int minOrder, int maxOrder) {
+		for (int kieli = 0 ; kieli < other.getLanguageAmount() ; kieli++) {
+			int language = addLanguage(other.getLanguage(kieli));
+			for (int t = maxOrder ; t >= minOrder ; t--) {
+				resetTypeAmount(language, t);
+			}
+		}
+		addCounts(other, minOrder, maxOrder);
+	}
+
+// adds the counts and typeAmounts of the orders minOrder..maxOrder of another model to these. The
+// new languages and grams are added in the order the other model has them, so adding the models
+// counted from consecutive parts of a file one after another gives the same ids as counting the
+// whole file into one model.
+
+	void addCounts(NgramModel other, int minOrder, int maxOrder) {
+		int[] languages = new int[other.getLanguageAmount()];
+		for (int kieli = 0 ; kieli < languages.length ; kieli++) {
+			languages[kieli] = addLanguage(other.getLanguage(kieli));
+		}
+		for (int gram = 0 ; gram < other.gramAmount ; gram++) {
+			int order = other.gramLength[gram];
+			if (order < minOrder || order > maxOrder) {
+				continue;
+			}
+			int id;
+			if (order <= PACKED_ORDER) {
+				id = addPackedGram(order, other.packedKey(gram));
+			}
+			else {
+				id = addGram(other.pool, other.gramStart[gram], order, other.gramHash[gram]);
+			}
+			for (int posting = other.gramHead[gram] ; posting >= 0 ; posting = other.postingNext[posting]) {
+				addCount(id, languages[other.postingLanguage[posting]], other.postingCount[posting]);
+			}
+		}
+		for (int kieli = 0 ; kieli < languages.length ; kieli++) {
+			for (int t = maxOrder ; t >= minOrder ; t--) {
+				addTypeAmount(languages[kieli], t, other.getTypeAmount(kieli, t));
+			}
+		}
+	}
+
+	int getCount(int gram, int language) {
+		int posting = gramHead[gram];
+		while (posting >= 0) {
+			if (postingLanguage[posting] == language) {
+				return postingCount[posting];
+			}
+			posting = postingNext[posting];
+		}
+		return 0;
+	}
+
+	int firstPosting(int gram) {
+		return gramHead[gram];
+	}
+
+	int nextPosting(int posting) {
+		return postingNext[posting];
+	}
+
+	int getPostingLanguage(int posting) {
+		return postingLanguage[posting];
+	}
+
+	int getPostingCount(int posting) {
+		return postingCount[posting];
+	}
+
+	void finish() {
+		int[] start = new int[gramAmount + 1];
+		int[] language = new int[postingAmount];
+		double[] score = new double[postingAmount];
+		int row = 0;
+		for (int gram = 0 ; gram < gramAmount ; gram++) {
+			start[gram] = row;
+			int order = gramLength[gram];
+			int posting = gramHead[gram];
+			while (posting >= 0) {
+				language[row] = postingLanguage[posting];
+				score[row] = -Math.log10((float) postingCount[posting] / (float) typeAmounts[postingLanguage[posting]][order]);
+				row++;
+				posting = postingNext[posting];
+			}
+		}
+		start[gramAmount] = row;
+		double[][] penalty = new double[languageList.size()][maxOrder + 1];
+		double[][] minScore = new double[languageList.size()][maxOrder + 1];
+		for (int i = 0 ; i < languageList.size() ; i++) {
+			for (int order = 1 ; order <= maxOrder ; order++) {
+				penalty[i][order] = -Math.log10(1/(float) typeAmounts[i][order]);
+			}
+			Arrays.fill(minScore[i], Double.POSITIVE_INFINITY);
+		}
+		for (int gram = 0 ; gram < gramAmount ; gram++) {
+			int order = gramLength[gram];
+			for (row = start[gram] ; row < start[gram + 1] ; row++) {
+				minScore[language[row]][order] = Math.min(minScore[language[row]][order], score[row]);
+			}
+		}
+		rowStart = start;
+		rowLanguage = language;
+		rowScore = score;
+		penalties = penalty;
+		minScores = minScore;
+	}
+
+	public int getRowStart(int gram) {
+		return rowStart[gram];
+	}
+
+	public int getRowEnd(int gram) {
+		return rowStart[gram + 1];
+	}
+
+	public int getRowLanguage(int row) {
+		return rowLanguage[row];
+	}
+
+	public double getRowScore(int row) {
+		return rowScore[row];
+	}
+
+	public double getPenalty(int language, int order) {
+		return penalties[language][order];
+	}
+
+// the smallest score of any n-gram of the order for the language, infinite if there are none.
+// No score is bigger than the penalty of the language and order.
+
+	double getMinScore(int language, int order) {
+		return minScores[language][order];
+	}
+
+	long scoreMemoryBytes() {
+		return rowStart.length * 4L + rowLanguage.length * 4L + rowScore.length * 8L;
+	}
+
+// the same format the TreeMap based typeAmounts used to print
+
+	String typeAmountsToString() {
+		TreeMap<String, TreeMap<Integer, Long>> printable = new TreeMap<>();
+		for (int language = 0 ; language < languageList.size() ; language++) {
+			TreeMap<Integer, Long> typam = new TreeMap<>();
+			for (int order = 1 ; order <= maxOrder ; order++) {
+				if (typeAmounts[language][order] > 0) {
+					typam.put(order, typeAmounts[language][order]);
+				}
+			}
+			printable.put(languageList.get(language), typam);
+		}
+		return printable.toString();
+	}
+
+	private boolean sameGram(int id, String gram) {
+		if (gramLength[id] != gram.length()) {
+			return false;
+		}
+		int start = gramStart[id];
+		for (int i = 0 ; i < gram.length() ; i++) {
+			if (pool[start + i] != gram.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean sameGram(int id, char[] text, int start, int length) {
+		if (gramLength[id] != length) {
+			return false;
+		}
+		int poolStart = gramStart[id];
+		for (int i = 0 ; i < length ; i++) {
+			if (pool[poolStart + i] != text[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private void insertSlot(int id) {
+		int mask = slots.length - 1;
+		int slot = mix(gramHash[id]) & mask;
+		while (slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = id + 1;
+	}
+
+	private void rehash(int capacity) {
+		slots = new int[capacity];
+		for (int id = 0 ; id < gramAmount ; id++) {
+			if (gramLength[id] > PACKED_ORDER) {
+				insertSlot(id);
+			}
+		}
+	}
+
+	private void ensureGramCapacity(int capacity) {
+		if (capacity > gramHash.length) {
+			int size = Math.max(capacity, gramHash.length * 2);
+			gramHash = Arrays.copyOf(gramHash, size);
+			gramStart = Arrays.copyOf(gramStart, size);
+			gramLength = Arrays.copyOf(gramLength, size);
+			gramHead = Arrays.copyOf(gramHead, size);
+		}
+	}
+
+	private void ensurePoolCapacity(int capacity) {
+		if (capacity > pool.length) {
+			pool = Arrays.copyOf(pool, Math.max(capacity, pool.length * 2));
+		}
+	}
+
+	private void ensurePostingCapacity(int capacity) {
+		if (capacity > postingLanguage.length) {
+			int size = Math.max(capacity, postingLanguage.length * 2);
+			postingLanguage = Arrays.copyOf(postingLanguage, size);
+			postingCount = Arrays.copyOf(postingCount, size);
+			postingNext = Arrays.copyOf(postingNext, size);
+		}
+	}
+}
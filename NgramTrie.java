@@ -0,0 +1,68 @@
+/*
+    NgramTrie.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.util.*;
+
+// Character trie over the vocabulary of a model. The n-grams of the different orders starting
+// at one position are prefixes of each other, so a single descent from the root finds all of
+// them, and the descent can stop as soon as a prefix has never been seen. The edges are kept
+// in one primitive hash map from (parent node, character) to child node.
+
+class NgramTrie {
+
+	private LongIntHashMap edges;
+	private int[] nodeGram;
+	private int nodeAmount = 1;
+
+	NgramTrie(NgramModel model) {
+		edges = new LongIntHashMap(model.getGramAmount());
+		nodeGram = new int[Math.max(16, model.getGramAmount() + 1)];
+		nodeGram[0] = -1;
+		for (int gram = 0 ; gram < model.getGramAmount() ; gram++) {
+			int node = 0;
+			for (int i = 0 ; i < model.getGramOrder(gram) ; i++) {
+				long key = edgeKey(node, model.getGramChar(gram, i));
+				int child = edges.get(key);
+				if (child < 0) {
+					child = nodeAmount++;
+					if (child >= nodeGram.length) {
+						nodeGram = Arrays.copyOf(nodeGram, nodeGram.length * 2);
+					}
+					nodeGram[child] = -1;
+					edges.put(key, child);
+				}
+				node = child;
+			}
+			nodeGram[node] = gram;
+		}
+	}
+
+	int getNodeAmount() {
+		return nodeAmount;
+	}
+
+// child node of node through character c, -1 when there is none
+
+	int child(int node, char c) {
+		return edges.get(edgeKey(node, c));
+	}
+
+// gram id of the node, -1 for prefixes of orders that are not in the model
+
+	int getGram(int node) {
+		return nodeGram[node];
+	}
+
+	private static long edgeKey(int node, char c) {
+		return ((long) node << 16) | c;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+    OnlineModel.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// A model that labelled lines can be added to while other threads identify with it. Every thread
+// adding lines counts them into a delta model of its own, locked only by itself and by publish(),
+// which moves the deltas into the overlay of the current snapshot every publishing interval. A
+// snapshot is the finished base model with its trie and an overlay of the counts added since the
+// base was made. Publishing copies only the overlay, and score() combines the counts and
+// typeAmounts of the two as if they had been counted into one model and finished, so the scores
+// are the same as those of the whole model rebuilt. When the overlay grows to more than
+// 1/REBASE_SHARE of the grams of the base, it is folded into a new base, which costs as much as
+// copying and finishing the whole model but happens only that seldom.
+//
+// Readers take the snapshot once for a line and never wait, the snapshots are not changed after
+// being published. The lines added show in the identification after the next publish(). The delta
+// of a thread that has ended is dropped once its lines have been published.
+//
+// Only the languages of the model the online model starts from can be added to. A new language
+// would have typeAmounts from a few lines only, and the penalty of an order it has not seen at
+// all would be infinitely small, so it would win every line.
+
+class OnlineModel implements AutoCloseable {
+
+	private static final int REBASE_SHARE = 8;
+
+	static class Snapshot {
+
+		private final NgramModel model;
+		private final NgramTrie trie;
+		private final NgramModel overlay;
+		private final long version;
+
+// the typeAmounts and penalties of the base and the overlay together, and the languages the
+// overlay has lines for, whose scores in the base are not right any more
+
+		private final float[][] typeAmounts;
+		private final double[][] penalties;
+		private final boolean[] changed;
+
+		private Snapshot(NgramModel model, NgramTrie trie, NgramModel overlay, long version) {
+			this.model = model;
+			this.trie = trie;
+			this.overlay = overlay;
+			this.version = version;
+			typeAmounts = new float[model.getLanguageAmount()][model.getMaxOrder() + 1];
+			penalties = new double[model.getLanguageAmount()][model.getMaxOrder() + 1];
+			changed = new boolean[model.getLanguageAmount()];
+			for (int kieli = 0 ; kieli < model.getLanguageAmount() ; kieli++) {
+				for (int t = 1 ; t <= model.getMaxOrder() ; t++) {
+					long added = overlay.getTypeAmount(kieli, t);
+					typeAmounts[kieli][t] = (float) (model.getTypeAmount(kieli, t) + added);
+					penalties[kieli][t] = -Math.log10(1/typeAmounts[kieli][t]);
+					changed[kieli] = changed[kieli] || added > 0;
+				}
+			}
+		}
+
+// the finished base model, its gram ids are those of the trie
+
+		NgramModel getModel() {
+			return model;
+		}
+
+		NgramTrie getTrie() {
+			return trie;
+		}
+
+// the counts added since the base, not finished, with the languages in the ids of the base
+
+		NgramModel getOverlay() {
+			return overlay;
+		}
+
+		long getVersion() {
+			return version;
+		}
+
+// scoreExhaustive on the base and overlay together. The grams have been looked up from the trie
+// and the overlayGrams from the overlay, for the same text. The score of a gram is worked out
+// from the counts only for the languages the overlay has changed, the same way finish() does it.
+
+		int score(NgramExtractor grams, NgramExtractor overlayGrams, double[] languagescores, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+			int languageAmount = model.getLanguageAmount();
+			double[] orderPenalties = new double[languageAmount];
+			double[] hitscores = new double[languageAmount];
+			boolean[] hits = new boolean[languageAmount];
+
+			int t = maxCharNgram;
+			int gramamount = 0;
+
+			while (t >= minCharNgram) {
+				for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+					orderPenalties[kieli] = penalties[kieli][t]*penaltymodifier;
+				}
+				int[] gramids = grams.getGramIds(t);
+				int[] overlayids = overlayGrams.getGramIds(t);
+				int amount = grams.getGramAmount(t);
+				for (int x = 0 ; x < amount ; x++) {
+					gramamount = gramamount + 1;
+					int gramid = gramids[x];
+					int overlayid = overlayids[x];
+					if (gramid >= 0) {
+						for (int row = model.getRowStart(gramid) ; row < model.getRowEnd(gramid) ; row++) {
+							int kieli = model.getRowLanguage(row);
+							hits[kieli] = true;
+							if (changed[kieli]) {
+								int count = model.getCount(gramid, kieli) + (overlayid >= 0 ? overlay.getCount(overlayid, kieli) : 0);
+								hitscores[kieli] = -Math.log10((float) count / typeAmounts[kieli][t]);
+							}
+							else {
+								hitscores[kieli] = model.getRowScore(row);
+							}
+						}
+					}
+					if (overlayid >= 0) {
+						for (int posting = overlay.firstPosting(overlayid) ; posting >= 0 ; posting = overlay.nextPosting(posting)) {
+							int kieli = overlay.getPostingLanguage(posting);
+							if (!hits[kieli]) {
+								hits[kieli] = true;
+								hitscores[kieli] = -Math.log10((float) overlay.getPostingCount(posting) / typeAmounts[kieli][t]);
+							}
+						}
+					}
+					for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+						if (hits[kieli]) {
+							languagescores[kieli] = languagescores[kieli] + hitscores[kieli];
+							hits[kieli] = false;
+						}
+						else {
+							languagescores[kieli] = languagescores[kieli] + orderPenalties[kieli];
+						}
+					}
+				}
+				t = t -1 ;
+			}
+			return gramamount;
+		}
+	}
+
+	private static class Delta {
+		private final Thread owner = Thread.currentThread();
+		private NgramModel counts = new NgramModel();
+		private int lines = 0;
+		private final NgramExtractor extractor = new NgramExtractor();
+	}
+
+	private final int minCharNgram;
+	private final int maxCharNgram;
+	private final List<Delta> deltas = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<Delta> threadDeltas = ThreadLocal.withInitial(this::newDelta);
+	private volatile Snapshot snapshot;
+	private ScheduledExecutorService publisher;
+
+// the finished model is the first base as it is and must not be changed any more
+
+	OnlineModel(NgramModel model, int minCharNgram, int maxCharNgram) {
+		this.minCharNgram = minCharNgram;
+		this.maxCharNgram = maxCharNgram;
+		snapshot = new Snapshot(model, new NgramTrie(model), newOverlay(model), 0);
+	}
+
+	private static NgramModel newOverlay(NgramModel model) {
+		NgramModel overlay = new NgramModel();
+		for (int kieli = 0 ; kieli < model.getLanguageAmount() ; kieli++) {
+			overlay.addLanguage(model.getLanguage(kieli));
+		}
+		return overlay;
+	}
+
+	private Delta newDelta() {
+		Delta delta = new Delta();
+		deltas.add(delta);
+		return delta;
+	}
+
+	Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+// the text normalized like the lines of the training file, returns false for a language the
+// model does not have
+
+	boolean addLine(String text, String language) {
+		if (snapshot.getModel().getLanguageId(language) < 0) {
+			return false;
+		}
+		Delta delta = threadDeltas.get();
+		synchronized (delta) {
+			delta.extractor.count(text, delta.counts, delta.counts.addLanguage(language), minCharNgram, maxCharNgram);
+			delta.lines++;
+		}
+		return true;
+	}
+
+// publishes every intervalMillis milliseconds from a daemon thread
+
+	synchronized void start(long intervalMillis) {
+		if (publisher != null) {
+			return;
+		}
+		publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "online model publisher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		publisher.scheduleWithFixedDelay(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+// returns the number of lines added to the new snapshot, 0 when there was nothing to publish
+
+	synchronized int publish() {
+		List<NgramModel> taken = new ArrayList<>();
+		int lines = 0;
+		for (Delta delta : deltas) {
+			synchronized (delta) {
+				if (delta.lines > 0) {
+					taken.add(delta.counts);
+					lines = lines + delta.lines;
+					delta.counts = new NgramModel();
+					delta.lines = 0;
+				}
+			}
+			if (!delta.owner.isAlive()) {
+				deltas.remove(delta);
+			}
+		}
+		if (taken.isEmpty()) {
+			return 0;
+		}
+		Snapshot current = snapshot;
+		NgramModel overlay = newOverlay(current.getModel());
+		overlay.addCounts(current.getOverlay(), minCharNgram, maxCharNgram);
+		for (NgramModel counts : taken) {
+			overlay.addCounts(counts, minCharNgram, maxCharNgram);
+		}
+		if (overlay.getGramAmount() * REBASE_SHARE <= current.getModel().getGramAmount()) {
+			snapshot = new Snapshot(current.getModel(), current.getTrie(), overlay, current.getVersion() + 1);
+			return lines;
+		}
+		NgramModel next = new NgramModel();
+		next.addCounts(current.getModel(), minCharNgram, maxCharNgram);
+		next.addCounts(overlay, minCharNgram, maxCharNgram);
+		next.finish();
+		snapshot = new Snapshot(next, new NgramTrie(next), newOverlay(next), current.getVersion() + 1);
+		return lines;
+	}
+
+// stops the publishing and publishes what is left
+
+	public synchronized void close() {
+		if (publisher != null) {
+			publisher.shutdownNow();
+			publisher = null;
+		}
+		publish();
+	}
+}
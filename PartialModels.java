@@ -0,0 +1,71 @@
+/*
+    PartialModels.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.io.*;
+import java.util.*;
+
+// Training in shards. Every shard of the training file is counted into a partial model file of its
+// own, anywhere, and the partial files are merged into one model file with a streaming sorted merge:
+//
+//   java -Dfile.encoding=UTF-8 PartialModels count <shard file> <partial file> <min order> <max order> [onlyAlphabetic]
+//   java -Dfile.encoding=UTF-8 PartialModels merge <model file> <partial file>...
+//
+// A partial file is a run of the SpillingCounter, a model file with the grams sorted, holding the
+// counts per language and the typeAmounts of the shard. A merged file is one too, so it can be
+// merged again with the partial file of a new shard. All the partial files have to be counted over
+// the same orders with the same onlyAlphabetic, or the merge fails. Given the shards in the order
+// they are in the whole training file, the merged model has the same languages, counts and
+// typeAmounts as counting the whole file, and TunPRF2 uses it as its modelFile with loadingModel.
+// Only the merged files are marked as merged in their header, TunPRF2 does not load a partial file
+// as it is, but a single one can be merged alone.
+
+class PartialModels {
+
+	private static int spillingGrams = 1000000;
+	private static String spillingDirectory = System.getProperty("java.io.tmpdir");
+
+	public static void main(String[] args) {
+		try {
+			if (args.length >= 5 && args[0].equals("count")) {
+				boolean onlyAlphabetic = args.length > 5 && Boolean.parseBoolean(args[5]);
+				count(args[1], new File(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), onlyAlphabetic);
+			}
+			else if (args.length >= 3 && args[0].equals("merge")) {
+				List<File> partials = new ArrayList<>();
+				for (int i = 2 ; i < args.length ; i++) {
+					partials.add(new File(args[i]));
+				}
+				SpillingCounter.mergeTo(partials, new File(args[1]), ModelFile.MERGED);
+				System.out.println("Merged " + partials.size() + " partial models into " + args[1]);
+			}
+			else {
+				System.out.println("Usage: PartialModels count <shard file> <partial file> <min order> <max order> [onlyAlphabetic]");
+				System.out.println("       PartialModels merge <model file> <partial file>...");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void count(String shardFile, File partial, int minCharNgram, int maxCharNgram, boolean onlyAlphabetic) throws IOException {
+		SpillingCounter counter = new SpillingCounter(minCharNgram, maxCharNgram, spillingGrams, new File(spillingDirectory), onlyAlphabetic);
+		NgramExtractor extractor = new NgramExtractor();
+		try (BufferedReader reader = new BufferedReader(new FileReader(new File(shardFile)))) {
+			String line = "";
+			while ((line = reader.readLine()) != null) {
+				counter.addLine(TunPRF2.trainingText(line, onlyAlphabetic), TunPRF2.trainingLanguage(line), extractor);
+			}
+		}
+		counter.writeTo(partial);
+		System.out.println("Counted " + shardFile + " into " + partial);
+	}
+}
@@ -0,0 +1,112 @@
+/*
+    QuantizedModel.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+// The finished scores of a NgramModel quantized to 8 or 16 bit buckets. A score of an n-gram is
+// between 0 and the base penalty of its language and order, -log10(1/typeAmount), so each
+// (language, order) gets the scale penalty / maxBucket and the penalty itself is always the
+// top bucket. Rows keep 2 bytes for the language and 1 or 2 bytes for the bucket instead of
+// the 12 bytes of the full precision rows.
+
+class QuantizedModel {
+
+	private int bits;
+	private int maxBucket;
+	private int[] rowStart;
+	private short[] rowLanguage;
+	private byte[] rowBucket8;
+	private short[] rowBucket16;
+	private double[][] scales;
+
+	QuantizedModel(NgramModel model, int bits) {
+		if (bits != 8 && bits != 16) {
+			throw new IllegalArgumentException("Quantized models have 8 or 16 bit buckets, not " + bits + ".");
+		}
+		if (model.getLanguageAmount() > 65536) {
+			throw new IllegalArgumentException("Quantized models can hold at most 65536 languages.");
+		}
+		this.bits = bits;
+		maxBucket = (1 << bits) - 1;
+		int languageAmount = model.getLanguageAmount();
+		int maxOrder = model.getMaxOrder();
+		scales = new double[languageAmount][maxOrder + 1];
+		for (int language = 0 ; language < languageAmount ; language++) {
+			for (int order = 1 ; order <= maxOrder ; order++) {
+				scales[language][order] = model.getPenalty(language, order) / maxBucket;
+			}
+		}
+		int gramAmount = model.getGramAmount();
+		int rows = model.getRowStart(gramAmount);
+		rowStart = new int[gramAmount + 1];
+		rowLanguage = new short[rows];
+		if (bits == 8) {
+			rowBucket8 = new byte[rows];
+		}
+		else {
+			rowBucket16 = new short[rows];
+		}
+		for (int gram = 0 ; gram < gramAmount ; gram++) {
+			rowStart[gram] = model.getRowStart(gram);
+			int order = model.getGramOrder(gram);
+			for (int row = model.getRowStart(gram) ; row < model.getRowEnd(gram) ; row++) {
+				int language = model.getRowLanguage(row);
+				rowLanguage[row] = (short) language;
+				long bucket = Math.round(model.getRowScore(row) / scales[language][order]);
+				bucket = Math.max(0, Math.min(maxBucket, bucket));
+				if (bits == 8) {
+					rowBucket8[row] = (byte) bucket;
+				}
+				else {
+					rowBucket16[row] = (short) bucket;
+				}
+			}
+		}
+		rowStart[gramAmount] = rows;
+	}
+
+	int getBits() {
+		return bits;
+	}
+
+// the bucket of the penalty of every language and order
+
+	int getMaxBucket() {
+		return maxBucket;
+	}
+
+	int getRowStart(int gram) {
+		return rowStart[gram];
+	}
+
+	int getRowEnd(int gram) {
+		return rowStart[gram + 1];
+	}
+
+	int getRowLanguage(int row) {
+		return rowLanguage[row] & 0xFFFF;
+	}
+
+	int getRowBucket(int row) {
+		if (bits == 8) {
+			return rowBucket8[row] & 0xFF;
+		}
+		return rowBucket16[row] & 0xFFFF;
+	}
+
+	double getScale(int language, int order) {
+		return scales[language][order];
+	}
+
+	long memoryBytes() {
+		long rows = rowLanguage.length;
+		return rowStart.length * 4L + rows * 2L + rows * (bits / 8);
+	}
+}
@@ -0,0 +1,34 @@
+/*
+    ScalarScoreKernel.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+class ScalarScoreKernel implements ScoreKernel {
+
+	public void addScaled(double[] row, double[] amounts, double factor, int length) {
+		for (int i = 0 ; i < length ; i++) {
+			row[i] = row[i] + amounts[i] * factor;
+		}
+	}
+
+	public void divide(double[] row, double[] divisors, int length) {
+		for (int i = 0 ; i < length ; i++) {
+			row[i] = row[i] / divisors[i];
+		}
+	}
+
+	public void keepSmaller(double[] row, double[] best, double[] winners, double language, int length) {
+		for (int i = 0 ; i < length ; i++) {
+			if (row[i] < best[i]) {
+				best[i] = row[i];
+				winners[i] = language;
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+/*
+    ScoreKernel.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+// The arithmetic of BatchScorer on rows of scores, one row for each language and one column
+// for each line of the batch. ScalarScoreKernel does it with plain loops, vector/VectorScoreKernel
+// with jdk.incubator.vector when it has been compiled and the module is available.
+
+interface ScoreKernel {
+
+// row[i] += amounts[i] * factor
+
+	void addScaled(double[] row, double[] amounts, double factor, int length);
+
+// row[i] = row[i] / divisors[i]
+
+	void divide(double[] row, double[] divisors, int length);
+
+// where row[i] < best[i], best[i] = row[i] and winners[i] = language
+
+	void keepSmaller(double[] row, double[] best, double[] winners, double language, int length);
+}
@@ -0,0 +1,136 @@
+/*
+    SearchCheckpoint.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+// The state of the development search in a small tab separated file: the fingerprints of the
+// training and development files with the settings that change what a score means, every evaluated (minCharNgram, maxCharNgram, smooth) with its
+// macro F1 score, the todo table still waiting to be evaluated and the ten best so far. The file
+// is written again after every round of the search, first to a temporary file which is then moved
+// over the old one, so a run killed at any point leaves the last complete checkpoint behind. A
+// checkpoint made from different files or settings is not used.
+
+class SearchCheckpoint {
+
+	private static final String HEADER = "TunPRF2 search checkpoint 2";
+
+	private final File file;
+	private final String fingerprint;
+
+// the settings are tab separated names and values, scores evaluated with other settings are not
+// comparable even if the files are the same
+
+	SearchCheckpoint(String checkpointFile, String trainFile, String developmentFile, boolean onlyAlphabetic, String settings) throws IOException {
+		this.file = new File(checkpointFile);
+		this.fingerprint = "train\t" + fingerprint(trainFile) + "\tdev\t" + fingerprint(developmentFile) + "\tonlyAlphabetic\t" + onlyAlphabetic + "\t" + settings;
+	}
+
+// the length and the CRC-32 of the contents
+
+	private static String fingerprint(String fileName) throws IOException {
+		CRC32 crc = new CRC32();
+		long length = 0;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(fileName))) {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, read);
+				length = length + read;
+			}
+		}
+		return length + ":" + Long.toHexString(crc.getValue());
+	}
+
+// fills the tables from the checkpoint and returns true, or returns false leaving them as they
+// are if there is no usable checkpoint
+
+	boolean load(TreeMap<Integer, TreeMap<Integer, TreeMap<Float, Float>>> forkingResultTable, TreeMap<Integer, TreeMap<Integer, ArrayList<Float>>> forkingTodoTable, TreeMap<Integer, String> tenbest) {
+		if (!file.exists()) {
+			return false;
+		}
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(file.toPath());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		if (lines.size() < 2 || !lines.get(0).equals(HEADER)) {
+			System.out.println("The checkpoint " + file + " is not a search checkpoint, not using it.");
+			return false;
+		}
+		if (!lines.get(1).equals(fingerprint)) {
+			System.out.println("The checkpoint " + file + " was made from different files or settings, not using it.");
+			return false;
+		}
+		TreeMap<Integer, TreeMap<Integer, TreeMap<Float, Float>>> results = new TreeMap<>();
+		TreeMap<Integer, TreeMap<Integer, ArrayList<Float>>> todo = new TreeMap<>();
+		TreeMap<Integer, String> best = new TreeMap<>();
+		for (String line : lines.subList(2, lines.size())) {
+			String[] fields = line.split("\t");
+			if (fields[0].equals("result")) {
+				results.computeIfAbsent(Integer.parseInt(fields[1]), k -> new TreeMap<>()).computeIfAbsent(Integer.parseInt(fields[2]), k -> new TreeMap<>()).put(Float.parseFloat(fields[3]), Float.parseFloat(fields[4]));
+			}
+			else if (fields[0].equals("todo")) {
+				todo.computeIfAbsent(Integer.parseInt(fields[1]), k -> new TreeMap<>()).computeIfAbsent(Integer.parseInt(fields[2]), k -> new ArrayList<>()).add(Float.parseFloat(fields[3]));
+			}
+			else if (fields[0].equals("best")) {
+				best.put(Integer.parseInt(fields[1]), fields[2]);
+			}
+		}
+		forkingResultTable.clear();
+		forkingResultTable.putAll(results);
+		forkingTodoTable.clear();
+		forkingTodoTable.putAll(todo);
+		tenbest.clear();
+		tenbest.putAll(best);
+		return true;
+	}
+
+	void save(TreeMap<Integer, TreeMap<Integer, TreeMap<Float, Float>>> forkingResultTable, TreeMap<Integer, TreeMap<Integer, ArrayList<Float>>> forkingTodoTable, TreeMap<Integer, String> tenbest) {
+		File temporary = new File(file.getPath() + ".tmp");
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8")))) {
+			writer.println(HEADER);
+			writer.println(fingerprint);
+			for (Map.Entry<Integer, TreeMap<Integer, TreeMap<Float, Float>>> entry : forkingResultTable.entrySet()) {
+				for (Map.Entry<Integer, TreeMap<Float, Float>> entry2 : entry.getValue().entrySet()) {
+					for (Map.Entry<Float, Float> entry3 : entry2.getValue().entrySet()) {
+						writer.println("result\t" + entry.getKey() + "\t" + entry2.getKey() + "\t" + entry3.getKey() + "\t" + entry3.getValue());
+					}
+				}
+			}
+			for (Map.Entry<Integer, TreeMap<Integer, ArrayList<Float>>> entry : forkingTodoTable.entrySet()) {
+				for (Map.Entry<Integer, ArrayList<Float>> entry2 : entry.getValue().entrySet()) {
+					for (Float smooth : entry2.getValue()) {
+						writer.println("todo\t" + entry.getKey() + "\t" + entry2.getKey() + "\t" + smooth);
+					}
+				}
+			}
+			for (Map.Entry<Integer, String> entry : tenbest.entrySet()) {
+				if (entry.getKey() < 11) {
+					writer.println("best\t" + entry.getKey() + "\t" + entry.getValue());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		try {
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
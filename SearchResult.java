@@ -0,0 +1,91 @@
+/*
+    SearchResult.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+// One parameter combination of the search and, once it has been evaluated, its macro F1 score
+// and the number of development lines it was evaluated on. Two results are the same combination
+// when their keys are equal.
+
+class SearchResult {
+
+	private final int minCharNgram;
+	private final int maxCharNgram;
+	private final float smooth;
+	private final float macroF1Score;
+	private final int lineAmount;
+
+	SearchResult(int minCharNgram, int maxCharNgram, float smooth) {
+		this(minCharNgram, maxCharNgram, smooth, Float.NaN, 0);
+	}
+
+	SearchResult(int minCharNgram, int maxCharNgram, float smooth, float macroF1Score, int lineAmount) {
+		this.minCharNgram = minCharNgram;
+		this.maxCharNgram = maxCharNgram;
+		this.smooth = smooth;
+		this.macroF1Score = macroF1Score;
+		this.lineAmount = lineAmount;
+	}
+
+	static long key(int minCharNgram, int maxCharNgram, float smooth) {
+		return ((long) minCharNgram << 48) | ((long) maxCharNgram << 32) | (Float.floatToIntBits(smooth) & 0xffffffffL);
+	}
+
+	long getKey() {
+		return key(minCharNgram, maxCharNgram, smooth);
+	}
+
+	int getMinCharNgram() {
+		return minCharNgram;
+	}
+
+	int getMaxCharNgram() {
+		return maxCharNgram;
+	}
+
+	float getSmooth() {
+		return smooth;
+	}
+
+	float getMacroF1Score() {
+		return macroF1Score;
+	}
+
+	int getLineAmount() {
+		return lineAmount;
+	}
+
+	SearchResult evaluated(float macroF1Score, int lineAmount) {
+		return new SearchResult(minCharNgram, maxCharNgram, smooth, macroF1Score, lineAmount);
+	}
+
+// the best first, equal scores in the order of minCharNgram, maxCharNgram and smooth like in findTenBest
+
+	static int compareBestFirst(SearchResult a, SearchResult b) {
+		int order = Float.compare(b.macroF1Score, a.macroF1Score);
+		if (order == 0) {
+			order = Integer.compare(a.minCharNgram, b.minCharNgram);
+		}
+		if (order == 0) {
+			order = Integer.compare(a.maxCharNgram, b.maxCharNgram);
+		}
+		if (order == 0) {
+			order = Float.compare(a.smooth, b.smooth);
+		}
+		return order;
+	}
+
+// the same format as the ten best strings of the original search
+
+	@Override
+	public String toString() {
+		return macroF1Score + "," + minCharNgram + "," + maxCharNgram + "," + smooth;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+    SketchModel.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+// Approximate counts of the n-grams of the orders fromOrder..toOrder for every language, in a
+// count-min sketch of depth rows per order. The cells of a (gram, language) pair are found from the
+// 64-bit key of the gram, rolled with GramFilter.roll(), mixed with the language and then again with
+// a seed of its own for every row, so pairs sharing a cell in one row seldom share it in the others.
+// Counts are added
+// with conservative update, raising only the cells that are below the new estimate, and the
+// estimate is the smallest of the cells. It can be too big when other pairs share all the cells,
+// never too small, so an n-gram not seen for a language can look like a rare one.
+//
+// The typeAmounts stay in the NgramModel, the scores are counted from the estimates with the
+// same formula as NgramModel.finish() uses.
+
+class SketchModel {
+
+	static final int DEPTH = 4;
+
+	private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0x632BE59BD9B4E019L, 0x85EBCA77C2B2AE63L, 0xD6E8FEB86659FD93L};
+
+	private final int fromOrder;
+	private final int toOrder;
+	private final int[][] cells;
+	private final int[] masks;
+
+	SketchModel(int fromOrder, int toOrder, long bytesPerOrder) {
+		this.fromOrder = fromOrder;
+		this.toOrder = toOrder;
+		cells = new int[toOrder + 1][];
+		masks = new int[toOrder + 1];
+		long width = 16;
+		while (width * 2 * DEPTH * 4 <= bytesPerOrder && width < (1 << 28)) {
+			width = width * 2;
+		}
+		for (int t = fromOrder ; t <= toOrder ; t++) {
+			cells[t] = new int[(int) width * DEPTH];
+			masks[t] = (int) width - 1;
+		}
+	}
+
+// the sketch of the orders fromOrder..toOrder counted into the model
+
+	static SketchModel build(NgramModel model, int fromOrder, int toOrder, long bytesPerOrder) {
+		SketchModel sketch = new SketchModel(fromOrder, toOrder, bytesPerOrder);
+		for (int gram = 0 ; gram < model.getGramAmount() ; gram++) {
+			int order = model.getGramOrder(gram);
+			if (order < fromOrder || order > toOrder) {
+				continue;
+			}
+			long key = 0;
+			for (int i = 0 ; i < order ; i++) {
+				key = GramFilter.roll(key, model.getGramChar(gram, i));
+			}
+			for (int posting = model.firstPosting(gram) ; posting >= 0 ; posting = model.nextPosting(posting)) {
+				sketch.add(order, key, model.getPostingLanguage(posting), model.getPostingCount(posting));
+			}
+		}
+		return sketch;
+	}
+
+	int getFromOrder() {
+		return fromOrder;
+	}
+
+	int getToOrder() {
+		return toOrder;
+	}
+
+	boolean hasOrder(int order) {
+		return order >= fromOrder && order <= toOrder;
+	}
+
+	void add(int order, long key, int language, int amount) {
+		int[] orderCells = cells[order];
+		long z = mix(key, language);
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0 ; row < DEPTH ; row++) {
+			estimate = Math.min(estimate, orderCells[cell(order, row, z)]);
+		}
+		int wanted = (int) Math.min(Integer.MAX_VALUE, (long) estimate + amount);
+		for (int row = 0 ; row < DEPTH ; row++) {
+			int cell = cell(order, row, z);
+			if (orderCells[cell] < wanted) {
+				orderCells[cell] = wanted;
+			}
+		}
+	}
+
+	int estimate(int order, long key, int language) {
+		int[] orderCells = cells[order];
+		long z = mix(key, language);
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0 ; row < DEPTH ; row++) {
+			estimate = Math.min(estimate, orderCells[cell(order, row, z)]);
+		}
+		return estimate;
+	}
+
+// every row has masks[order] + 1 cells of its own
+
+	private int cell(int order, int row, long z) {
+		long h = (z ^ SEEDS[row]) * 0x94D049BB133111EBL;
+		h = h ^ (h >>> 29);
+		return row * (masks[order] + 1) + ((int) (h >>> 32) & masks[order]);
+	}
+
+	private static long mix(long key, int language) {
+		long z = (key ^ (language + 1) * 0xC2B2AE3D27D4EB4FL) * 0xBF58476D1CE4E5B9L;
+		return z ^ (z >>> 31);
+	}
+
+	long memoryBytes() {
+		long bytes = 0;
+		for (int t = fromOrder ; t <= toOrder ; t++) {
+			bytes = bytes + cells[t].length * 4L;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,325 @@
+/*
+    SpillingCounter.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Counts the training lines into a buffer model of at most bufferGrams n-grams. When the buffer is
+// full its grams are written in sorted order to a run, a model file in the format of ModelFile, and
+// counting starts again with an empty buffer. In the end the runs are merged k ways into the model,
+// so the memory needed for counting is set by the buffer and not by the vocabulary of the corpus.
+// The typeAmounts of the runs are in their headers and are added up the same way.
+
+class SpillingCounter {
+
+	private final int minCharNgram;
+	private final int maxCharNgram;
+	private final int bufferGrams;
+	private final File directory;
+	private final boolean onlyAlphabetic;
+
+	private final List<String> languageList = new ArrayList<>();
+	private final List<File> runs = new ArrayList<>();
+	private NgramModel buffer = new NgramModel();
+
+	SpillingCounter(int minCharNgram, int maxCharNgram, int bufferGrams, File directory, boolean onlyAlphabetic) {
+		this.minCharNgram = minCharNgram;
+		this.maxCharNgram = maxCharNgram;
+		this.bufferGrams = bufferGrams;
+		this.directory = directory;
+		this.onlyAlphabetic = onlyAlphabetic;
+	}
+
+// the languages in the order they were first seen in the lines
+
+	List<String> getLanguageList() {
+		return languageList;
+	}
+
+	int getRunAmount() {
+		return runs.size();
+	}
+
+	void addLine(String text, String language, NgramExtractor extractor) throws IOException {
+		if (!languageList.contains(language)) {
+			languageList.add(language);
+		}
+		extractor.count(text, buffer, buffer.addLanguage(language), minCharNgram, maxCharNgram);
+		if (buffer.getGramAmount() >= bufferGrams) {
+			spill();
+		}
+	}
+
+	private void spill() throws IOException {
+		File run = File.createTempFile("NADI.run", ".tmp", directory);
+		run.deleteOnExit();
+		runs.add(run);
+		writeRun(buffer, onlyAlphabetic, run);
+		buffer = new NgramModel();
+	}
+
+// a model file with the grams in the order of compare() and their postings in the order of the languages
+
+	static void writeRun(NgramModel model, boolean onlyAlphabetic, File run) throws IOException {
+		Integer[] sorted = new Integer[model.getGramAmount()];
+		for (int gram = 0 ; gram < sorted.length ; gram++) {
+			sorted[gram] = gram;
+		}
+		Arrays.sort(sorted, (a, b) -> compare(model, a, b));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+			ModelFile.writeHeader(out, onlyAlphabetic, ModelFile.NONE, model);
+			int[] languages = new int[model.getLanguageAmount()];
+			int[] counts = new int[model.getLanguageAmount()];
+			char[] chars = new char[Byte.MAX_VALUE];
+			int[] languageCounts = new int[model.getLanguageAmount()];
+			for (int gram : sorted) {
+				for (int posting = model.firstPosting(gram) ; posting >= 0 ; posting = model.nextPosting(posting)) {
+					languageCounts[model.getPostingLanguage(posting)] = model.getPostingCount(posting);
+				}
+				int postings = 0;
+				for (int kieli = 0 ; kieli < languageCounts.length ; kieli++) {
+					if (languageCounts[kieli] > 0) {
+						languages[postings] = kieli;
+						counts[postings] = languageCounts[kieli];
+						languageCounts[kieli] = 0;
+						postings++;
+					}
+				}
+				int length = model.getGramOrder(gram);
+				for (int i = 0 ; i < length ; i++) {
+					chars[i] = model.getGramChar(gram, i);
+				}
+				ModelFile.writeGram(out, chars, length, languages, counts, postings);
+			}
+			out.writeByte(0);
+		}
+	}
+
+// adds everything counted to the model, which has to have the languages already. Without any runs
+// the buffer is added as it is, otherwise it is spilled too and all the runs are merged and deleted.
+
+	void addTo(NgramModel model) throws IOException {
+		if (runs.isEmpty()) {
+			model.addCounts(buffer, minCharNgram, maxCharNgram);
+			buffer = new NgramModel();
+			return;
+		}
+		if (buffer.getGramAmount() > 0) {
+			spill();
+		}
+		try {
+			merge(runs, model, minCharNgram, maxCharNgram);
+		} finally {
+			for (File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+		}
+	}
+
+// writes everything counted to one run, merging the spilled runs into it when there are any
+
+	void writeTo(File run) throws IOException {
+		if (runs.isEmpty()) {
+			File temporary = new File(run.getPath() + ".tmp");
+			writeRun(buffer, onlyAlphabetic, temporary);
+			Files.move(temporary.toPath(), run.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			buffer = new NgramModel();
+			return;
+		}
+		if (buffer.getGramAmount() > 0) {
+			spill();
+		}
+		try {
+			mergeTo(runs, run, ModelFile.NONE);
+		} finally {
+			for (File spilled : runs) {
+				spilled.delete();
+			}
+			runs.clear();
+		}
+	}
+
+	static void merge(List<File> runs, NgramModel model, int minCharNgram, int maxCharNgram) throws IOException {
+		addHeaders(runs, model, minCharNgram, maxCharNgram);
+		merge(runs, model, minCharNgram, maxCharNgram, (chars, length, hash, counts) -> {
+			int gram = model.addGram(chars, 0, length, hash);
+			for (int kieli = 0 ; kieli < counts.length ; kieli++) {
+				if (counts[kieli] > 0) {
+					model.addCount(gram, kieli, counts[kieli]);
+				}
+			}
+		});
+	}
+
+// merges the runs into one more run, a model file with the grams sorted, without holding any more
+// than one gram of each run in memory. Writes to a temporary file first like ModelFile.save.
+
+	static void mergeTo(List<File> runs, File merged, String trainingFingerprint) throws IOException {
+		NgramModel header = new NgramModel();
+		boolean onlyAlphabetic = addHeaders(runs, header, 1, Byte.MAX_VALUE);
+		File temporary = new File(merged.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+			ModelFile.writeHeader(out, onlyAlphabetic, trainingFingerprint, header);
+			int[] languages = new int[header.getLanguageAmount()];
+			int[] postingCounts = new int[header.getLanguageAmount()];
+			merge(runs, header, 1, Byte.MAX_VALUE, (chars, length, hash, counts) -> {
+				int postings = 0;
+				for (int kieli = 0 ; kieli < counts.length ; kieli++) {
+					if (counts[kieli] > 0) {
+						languages[postings] = kieli;
+						postingCounts[postings] = counts[kieli];
+						postings++;
+					}
+				}
+				ModelFile.writeGram(out, chars, length, languages, postingCounts, postings);
+			});
+			out.writeByte(0);
+		}
+		Files.move(temporary.toPath(), merged.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+// adds the languages and typeAmounts of the runs to the model, returns their onlyAlphabetic. The runs
+// have to be counted the same way and over the same orders, or the typeAmounts of an order would
+// only be those of some of them.
+
+	private static boolean addHeaders(List<File> runs, NgramModel model, int minCharNgram, int maxCharNgram) throws IOException {
+		Boolean onlyAlphabetic = null;
+		String orders = null;
+		for (File run : runs) {
+			try (ModelFile.GramReader reader = new ModelFile.GramReader(run)) {
+				if (onlyAlphabetic != null && onlyAlphabetic != reader.isOnlyAlphabetic()) {
+					throw new IOException(run + " has been counted with onlyAlphabetic = " + reader.isOnlyAlphabetic() + " unlike the files before it.");
+				}
+				onlyAlphabetic = reader.isOnlyAlphabetic();
+				if (orders != null && !orders.equals(countedOrders(reader))) {
+					throw new IOException(run + " has the orders " + countedOrders(reader) + " counted unlike the files before it with " + orders + ".");
+				}
+				orders = countedOrders(reader);
+				for (int kieli = 0 ; kieli < reader.getLanguageAmount() ; kieli++) {
+					int languageId = model.addLanguage(reader.getLanguage(kieli));
+					for (int t = Math.min(maxCharNgram, reader.getMaxOrder()) ; t >= minCharNgram ; t--) {
+						if (reader.hasOrder(t)) {
+							model.addTypeAmount(languageId, t, reader.getTypeAmount(kieli, t));
+						}
+					}
+				}
+			}
+		}
+		return onlyAlphabetic != null && onlyAlphabetic;
+	}
+
+// the counted orders of a run up to its maxOrder, as in [1, 2, 3, 4]
+
+	private static String countedOrders(ModelFile.GramReader reader) {
+		List<Integer> orders = new ArrayList<>();
+		for (int t = 1 ; t <= reader.getMaxOrder() ; t++) {
+			if (reader.hasOrder(t)) {
+				orders.add(t);
+			}
+		}
+		return orders + " of maxOrder " + reader.getMaxOrder();
+	}
+
+// gets the grams of the orders minCharNgram..maxCharNgram in sorted order with their counts added up
+// over the runs, counts[language] with the language ids of the model which has all the languages
+
+	interface GramSink {
+		void add(char[] chars, int length, int hash, int[] counts) throws IOException;
+	}
+
+	private static void merge(List<File> runs, NgramModel model, int minCharNgram, int maxCharNgram, GramSink sink) throws IOException {
+		PriorityQueue<ModelFile.GramReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), SpillingCounter::compare);
+		List<ModelFile.GramReader> readers = new ArrayList<>();
+		Map<ModelFile.GramReader, int[]> languagesOf = new IdentityHashMap<>();
+		try {
+			for (File run : runs) {
+				ModelFile.GramReader reader = new ModelFile.GramReader(run);
+				readers.add(reader);
+				int[] ids = new int[reader.getLanguageAmount()];
+				for (int kieli = 0 ; kieli < ids.length ; kieli++) {
+					ids[kieli] = model.getLanguageId(reader.getLanguage(kieli));
+				}
+				languagesOf.put(reader, ids);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+
+			char[] chars = new char[Byte.MAX_VALUE];
+			int[] counts = new int[model.getLanguageAmount()];
+			while (!queue.isEmpty()) {
+				ModelFile.GramReader first = queue.peek();
+				int length = first.getLength();
+				int hash = first.getHash();
+				System.arraycopy(first.getChars(), 0, chars, 0, length);
+				while (!queue.isEmpty() && sameGram(queue.peek(), chars, length)) {
+					ModelFile.GramReader reader = queue.poll();
+					int[] ids = languagesOf.get(reader);
+					for (int i = 0 ; i < reader.getPostingAmount() ; i++) {
+						counts[ids[reader.getPostingLanguage(i)]] += reader.getPostingCount(i);
+					}
+					if (reader.next()) {
+						queue.add(reader);
+					}
+				}
+				if (length >= minCharNgram && length <= maxCharNgram) {
+					sink.add(chars, length, hash, counts);
+				}
+				Arrays.fill(counts, 0);
+			}
+		} finally {
+			for (ModelFile.GramReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	private static boolean sameGram(ModelFile.GramReader reader, char[] chars, int length) {
+		if (reader.getLength() != length) {
+			return false;
+		}
+		for (int i = 0 ; i < length ; i++) {
+			if (reader.getChars()[i] != chars[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+// grams in the order of their characters, a gram before the longer ones it is the beginning of
+
+	private static int compare(NgramModel model, int a, int b) {
+		int lengthA = model.getGramOrder(a);
+		int lengthB = model.getGramOrder(b);
+		for (int i = 0 ; i < Math.min(lengthA, lengthB) ; i++) {
+			int difference = model.getGramChar(a, i) - model.getGramChar(b, i);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return lengthA - lengthB;
+	}
+
+	private static int compare(ModelFile.GramReader a, ModelFile.GramReader b) {
+		char[] charsA = a.getChars();
+		char[] charsB = b.getChars();
+		for (int i = 0 ; i < Math.min(a.getLength(), b.getLength()) ; i++) {
+			int difference = charsA[i] - charsB[i];
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return a.getLength() - b.getLength();
+	}
+}
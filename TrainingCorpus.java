@@ -0,0 +1,106 @@
+/*
+    TrainingCorpus.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+import java.io.*;
+import java.util.*;
+
+// The training file after normalization: the texts of all the lines one after another in one
+// char buffer and the language of every line as an int, in the order the languages are first
+// seen. Counting more orders later goes through the buffer instead of reading and normalizing
+// the file again. The buffer is indexed by int, so the normalized texts can have at most
+// Integer.MAX_VALUE characters in total.
+
+class TrainingCorpus {
+
+	private final String trainFile;
+	private final boolean onlyAlphabetic;
+	private final long fileLength;
+	private final long fileModified;
+
+	private char[] buffer = new char[1 << 16];
+	private int size = 0;
+	private int[] lineStart = new int[1 << 10];
+	private int[] lineLanguage = new int[1 << 10];
+	private int lineAmount = 0;
+	private ArrayList<String> languageList = new ArrayList<>();
+	private HashMap<String, Integer> languageIds = new HashMap<>();
+
+	TrainingCorpus(String trainFile, boolean onlyAlphabetic) {
+		this.trainFile = trainFile;
+		this.onlyAlphabetic = onlyAlphabetic;
+		File file = new File(trainFile);
+		this.fileLength = file.length();
+		this.fileModified = file.lastModified();
+	}
+
+// false also when the file has been changed since it was read
+
+	boolean isFor(String otherTrainFile, boolean otherOnlyAlphabetic) {
+		File file = new File(otherTrainFile);
+		return trainFile.equals(otherTrainFile) && onlyAlphabetic == otherOnlyAlphabetic && file.length() == fileLength && file.lastModified() == fileModified;
+	}
+
+	void addLine(String text, String language) {
+		if ((long) size + text.length() > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("The training file is too big to be kept in memory, count it without useCorpusCache.");
+		}
+		if (size + text.length() > buffer.length) {
+			buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) size + text.length(), (long) buffer.length * 2)));
+		}
+		if (lineAmount + 1 >= lineStart.length) {
+			lineStart = Arrays.copyOf(lineStart, lineStart.length * 2);
+			lineLanguage = Arrays.copyOf(lineLanguage, lineLanguage.length * 2);
+		}
+		Integer id = languageIds.get(language);
+		if (id == null) {
+			id = languageList.size();
+			languageList.add(language);
+			languageIds.put(language, id);
+		}
+		text.getChars(0, text.length(), buffer, size);
+		lineStart[lineAmount] = size;
+		lineLanguage[lineAmount] = id;
+		size = size + text.length();
+		lineAmount++;
+		lineStart[lineAmount] = size;
+	}
+
+	int getLineAmount() {
+		return lineAmount;
+	}
+
+	char[] getBuffer() {
+		return buffer;
+	}
+
+	int getLineStart(int line) {
+		return lineStart[line];
+	}
+
+	int getLineLength(int line) {
+		return lineStart[line + 1] - lineStart[line];
+	}
+
+	String getLanguage(int line) {
+		return languageList.get(lineLanguage[line]);
+	}
+
+// the line again in the format of the training file, normalizing it gives the same text
+
+	String getLine(int line) {
+		return getLanguage(line) + "\t" + new String(buffer, lineStart[line], getLineLength(line));
+	}
+
+	long memoryBytes() {
+		return (long) buffer.length * 2 + (long) lineStart.length * 4 + (long) lineLanguage.length * 4;
+	}
+}
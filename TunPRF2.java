@@ -13,6 +13,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.Math.*;
 //import java.text.DecimalFormat;
 
@@ -20,8 +21,12 @@ class TunPRF2 {
 
 // global table holding the language models for all the languages
 
-	private static TreeMap<String, TreeMap<String, Float>> gramDictCap;
-	private static TreeMap<String, TreeMap<Integer, Float>> typeAmounts;
+	private static NgramModel model;
+	private static NgramTrie trie;
+	private static QuantizedModel quantizedModel;
+	private static final ThreadLocal<NgramExtractor> extractors = ThreadLocal.withInitial(NgramExtractor::new);
+	private static final ThreadLocal<NgramExtractor> overlayExtractors = ThreadLocal.withInitial(NgramExtractor::new);
+	private static final ThreadLocal<BatchScorer> batchScorers = ThreadLocal.withInitial(BatchScorer::new);
 	private static TreeMap<Integer, TreeMap<Integer, TreeMap<Float, Float>>> forkingResultTable;
 	private static TreeMap<Integer, TreeMap<Integer, ArrayList<Float>>> forkingTodoTable;
 //	private static DecimalFormat df;
@@ -30,11 +35,65 @@ class TunPRF2 {
 	private static Float tenbestTotal;
 	
 	private static boolean onlyAlphabetic = false;
+	private static boolean useTrieIndex = true;
+	private static boolean useSparseScoring = false;
+	private static boolean useQuantizedModel = false;
+	private static int quantizationBits = 8;
+	private static boolean printingQuantizationReport = false;
+	private static boolean useBatchScoring = false;
+	private static int batchSize = 256;
+	private static boolean usePruning = false;
+	private static double pruningMargin = 0.0;
+	private static int pruningInterval = 16;
+	private static int evaluationThreads = 1;
+	private static ForkJoinPool evaluationPool;
+	private static int sweepThreads = 1;
+	private static boolean useStatisticsCache = false;
+	private static Map<ArrayList<String>, LineStatistics> lineStatistics = new IdentityHashMap<>();
+	private static boolean useHalvingSearch = false;
+	private static int halvingEta = 2;
+	private static int halvingMinimumLines = 200;
+	private static int searchEvaluationBudget = 0;
+	private static long searchTimeBudget = 0;
+	private static boolean useCheckpoint = false;
+	private static SearchCheckpoint checkpoint;
+	private static boolean useSpeculativeModels = false;
+	private static ExecutorService speculation;
+	private static Map<Integer, Future<NgramModel>> speculativeModels = new HashMap<>();
+	private static int crossValidationFolds = 0;
+	private static int trainingThreads = 1;
+	private static int trainingChunkLines = 20000;
+	private static boolean useCorpusCache = false;
+	private static boolean useSpilling = false;
+	private static int spillingGrams = 1000000;
+	private static String spillingDirectory = System.getProperty("java.io.tmpdir");
+	private static TrainingCorpus trainingCorpus;
+	private static boolean loadingModel = false;
+	private static boolean savingModel = false;
+	private static boolean useMappedModel = false;
+	private static MappedModel mappedModel;
+	private static String modelFingerprint = ModelFile.NONE;
+	private static boolean useGramFilter = false;
+	private static int gramFilterBits = 10;
+	private static boolean printingFilterReport = false;
+	private static GramFilter gramFilter;
+	private static boolean useSketchModel = false;
+	private static int sketchMinOrder = 5;
+	private static long sketchBytes = 1 << 20;
+	private static boolean printingSketchReport = false;
+	private static SketchModel sketchModel;
+	private static boolean useOnlineUpdates = false;
+	private static long publishingInterval = 1000;
+	private static volatile OnlineModel onlineModel;
+	private static CrossValidation crossValidation;
 	
 	private static String testIdentifier = ".nb2-20220908-50";
 	private static String printDevelopmentResultsFile = "NADI.dev.labels" + testIdentifier;
 	private static String printTestResultsFile = "NADI.test.labels" + testIdentifier;
 	private static String printDevelopmentStatisticsFile = "NADI.dev.statistics" + testIdentifier;
+	private static String checkpointFile = "NADI.dev.checkpoint" + testIdentifier;
+	private static String modelFile = "NADI.model" + testIdentifier;
+	private static String mappedModelFile = "NADI.scores" + testIdentifier;
 	private static boolean printingDevelopmentResults = false;
 	private static boolean identifyFinalMysteryText = true;
 
@@ -108,8 +167,7 @@ class TunPRF2 {
 			}
 		}
          
-		gramDictCap = new TreeMap<>();
-		typeAmounts = new TreeMap<>();
+		model = new NgramModel();
 		forkingResultTable = new TreeMap<>();
 		
 		TreeMap<Integer, String> tenbest;
@@ -143,17 +201,122 @@ class TunPRF2 {
 			maxCharNgram = 4;
 			smooth = (float) 1.4375;
 		}
+
+// resuming an interrupted search, the models are created for every order the checkpoint has used.
+// Only the forking search has checkpoints, the halving search starts from the beginning every time.
+
+		if (!identifyFinalMysteryText && useHalvingSearch && useCheckpoint) {
+			System.out.println("The halving search does not use checkpoints, " + checkpointFile + " is neither read nor written.");
+		}
+		if (!identifyFinalMysteryText && !useHalvingSearch && useCheckpoint) {
+			try {
+				checkpoint = new SearchCheckpoint(checkpointFile, trainFile, developmentFile, onlyAlphabetic, searchSettings());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			TreeMap<Integer, String> resumedTenbest = new TreeMap<>();
+			if (checkpoint != null && checkpoint.load(forkingResultTable, forkingTodoTable, resumedTenbest)) {
+				System.out.println("Resuming the search from " + checkpointFile + ".");
+				printTenBest(resumedTenbest);
+				for (Map.Entry<Integer, TreeMap<Integer, TreeMap<Float, Float>>> entry : forkingResultTable.entrySet()) {
+					minCharNgram = Math.max(1, Math.min(minCharNgram, entry.getKey()));
+					maxCharNgram = Math.max(maxCharNgram, entry.getValue().lastKey());
+				}
+				for (Map.Entry<Integer, TreeMap<Integer, ArrayList<Float>>> entry : forkingTodoTable.entrySet()) {
+					minCharNgram = Math.max(1, Math.min(minCharNgram, entry.getKey()));
+					maxCharNgram = Math.max(maxCharNgram, entry.getValue().lastKey());
+				}
+			}
+		}
+		
+// with crossValidationFolds the parameters are evaluated on folds of the training file instead of the development file
+
+		if (!identifyFinalMysteryText && crossValidationFolds > 1) {
+			crossValidation = new CrossValidation(crossValidationFolds);
+		}
 		
 // creating initial character ngram models
 		
-		System.out.println("Next: creating character ngram models from " + minCharNgram + " to " + maxCharNgram + ".");
-		System.out.println("Using file " + trainFile + " as training material.");
+		if (identifyFinalMysteryText && useMappedModel && openMappedModel(trainFile, minCharNgram, maxCharNgram)) {
+			languageList = new ArrayList<String>(mappedModel.getLanguageList());
+			System.out.println("Using the memory-mapped models in " + mappedModelFile);
+		}
+		else if (loadingModel && crossValidation == null && loadModels(trainFile, minCharNgram, maxCharNgram)) {
+			languageList = new ArrayList<String>(model.getLanguageList());
+			System.out.println("Models loaded from " + modelFile);
+		}
+		else {
+			System.out.println("Next: creating character ngram models from " + minCharNgram + " to " + maxCharNgram + ".");
+			System.out.println("Using file " + trainFile + " as training material.");
+			
+			if (identifyFinalMysteryText && useSketchModel && !useMappedModel && !savingModel && crossValidation == null && maxCharNgram >= sketchMinOrder) {
+				languageList = createSketchedModels(trainFile, minCharNgram, maxCharNgram, onlyAlphabetic);
+			}
+			else {
+				languageList = createModels(trainFile,minCharNgram,maxCharNgram,onlyAlphabetic);
+			}
+			
+			System.out.println("Models created from " + minCharNgram + " to " + maxCharNgram);
+			
+			if (savingModel || useMappedModel) {
+				modelFingerprint = ModelFile.fingerprint(trainFile);
+			}
+			if (savingModel) {
+				saveModels();
+			}
+		}
+		
+// the final identification can use the models from a memory-mapped file, written now if there
+// was none, and the models on the heap are let go
+
+		if (identifyFinalMysteryText && useMappedModel && mappedModel == null) {
+			try {
+				MappedModel.write(model, onlyAlphabetic, modelFingerprint, mappedModelFile);
+				System.out.println("Models written to " + mappedModelFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (openMappedModel(trainFile, minCharNgram, maxCharNgram)) {
+				model = new NgramModel();
+				trie = null;
+				quantizedModel = null;
+			}
+		}
 		
-		languageList = createModels(trainFile,minCharNgram,maxCharNgram,onlyAlphabetic);
+		if (identifyFinalMysteryText && useSketchModel && mappedModel == null && sketchModel == null) {
+			sketchModels();
+		}
 		
-		System.out.println("Models created from " + minCharNgram + " to " + maxCharNgram);
+// with useOnlineUpdates lines added with addFeedback() are taken into the final identification
+// while it is running, every publishingInterval milliseconds
 
+		if (identifyFinalMysteryText && useOnlineUpdates && mappedModel == null && sketchModel == null) {
+			onlineModel = new OnlineModel(model, minCharNgram, maxCharNgram);
+			onlineModel.start(publishingInterval);
+		}
+		
 		if (!identifyFinalMysteryText) {
+			speculateModels(trainFile);
+		}
+
+		if (!identifyFinalMysteryText && useHalvingSearch) {
+			SearchResult best = searchWithHalving(developmentText, languageList, trainFile, minCharNgram, maxCharNgram);
+			if (best == null) {
+				System.out.println("The halving search has no results, using minCharNgram = " + minCharNgram + ", maxCharNgram = " + maxCharNgram + ", smooth = " + smooth + ".");
+				best = new SearchResult(minCharNgram, maxCharNgram, smooth);
+			}
+			smooth = best.getSmooth();
+			if (printingQuantizationReport) {
+				printQuantizationReport(developmentText, languageList, best.getMinCharNgram(), best.getMaxCharNgram(), smooth);
+			}
+			if (printingSketchReport) {
+				printSketchReport(developmentText, languageList, best.getMinCharNgram(), best.getMaxCharNgram(), smooth);
+			}
+			printingDevelopmentResults = true;
+			resetFilterCounts();
+			evaluateText(developmentText, languageList, best.getMinCharNgram(), best.getMaxCharNgram(), smooth, onlyAlphabetic);
+		}
+		else if (!identifyFinalMysteryText) {
 			file = new File(developmentFile);
 			
 			processTodoTable(developmentText, languageList,forkingTodoTable);
@@ -165,8 +328,10 @@ class TunPRF2 {
 			
 			printTenBest(tenbest);
 			calculateTenBestTotal(tenbest);
+			saveCheckpoint(new TreeMap<>(), tenbest);
 					
 			createNewTodoTable(tenbest,trainFile,languageList,minCharNgram,maxCharNgram);
+			saveCheckpoint(forkingTodoTable, tenbest);
 			
 			printTodoTable();
 
@@ -175,27 +340,112 @@ class TunPRF2 {
 			tenbest = findTenBest(tenbest);
 			printTenBest(tenbest);
 			calculateTenBestTotal(tenbest);
+			saveCheckpoint(new TreeMap<>(), tenbest);
 			
 			Float oldTenbestTotal = (float)0;
 			while (oldTenbestTotal < tenbestTotal) {
 				oldTenbestTotal = tenbestTotal;
 				createNewTodoTable(tenbest,trainFile,languageList,minCharNgram,maxCharNgram);
+				saveCheckpoint(forkingTodoTable, tenbest);
 				printTodoTable();
 				processTodoTable(developmentText, languageList,forkingTodoTable);
 				tenbest = new TreeMap<>();
 				tenbest = findTenBest(tenbest);
 				printTenBest(tenbest);
 				calculateTenBestTotal(tenbest);
+				saveCheckpoint(new TreeMap<>(), tenbest);
 			}
 			int x = Integer.parseInt(tenbest.get(1).split(",")[1]);
 			int y = Integer.parseInt(tenbest.get(1).split(",")[2]);
 			smooth = Float.parseFloat(tenbest.get(1).split(",")[3]);
+			if (printingQuantizationReport) {
+				printQuantizationReport(developmentText, languageList, x, y, smooth);
+			}
+			if (printingSketchReport) {
+				printSketchReport(developmentText, languageList, x, y, smooth);
+			}
 			printingDevelopmentResults = true;
+			resetFilterCounts();
 			evaluateText(developmentText, languageList, x, y, smooth, onlyAlphabetic);
 		}
 		if (identifyFinalMysteryText) {
+			resetFilterCounts();
 			evaluateFinal(testText, languageList, minCharNgram, maxCharNgram, smooth, onlyAlphabetic);
 		}
+		if (onlineModel != null) {
+			onlineModel.close();
+		}
+		if (printingFilterReport && gramFilter != null) {
+			gramFilter.printReport();
+		}
+	}
+	
+// the settings that change the scores of the search, written into its checkpoint. The folds are
+// evaluated on other lines than the development file, and the halving search, quantization and
+// pruning with a margin give other scores for the same parameters.
+
+	private static String searchSettings() {
+		return "crossValidationFolds\t" + (crossValidationFolds > 1 ? crossValidationFolds : 0) + "\tuseHalvingSearch\t" + useHalvingSearch + "\thalvingEta\t" + halvingEta + "\thalvingMinimumLines\t" + halvingMinimumLines + "\tquantizationBits\t" + (useQuantizedModel ? quantizationBits : 0) + "\tpruningMargin\t" + (usePruning ? pruningMargin : 0.0);
+	}
+
+// the filter report covers only the last identification, of the test file or of the development
+// file with the best parameters, not the look-ups of the search before it
+
+	private static void resetFilterCounts() {
+		if (gramFilter != null) {
+			gramFilter.resetCounts();
+		}
+	}
+
+// starts from the same combinations as forkingTodoTable, the models of the missing orders are
+// created when the search first needs them
+
+	private static SearchResult searchWithHalving(ArrayList<String> developmentText, List<String> languageList, String trainFile, int minCharNgram, int maxCharNgram) {
+		List<SearchResult> combinations = new ArrayList<>();
+		for (Map.Entry<Integer, TreeMap<Integer, ArrayList<Float>>> entry : forkingTodoTable.entrySet()) {
+			for (Map.Entry<Integer, ArrayList<Float>> entry2 : entry.getValue().entrySet()) {
+				for (Float smooth : entry2.getValue()) {
+					combinations.add(new SearchResult(entry.getKey(), entry2.getKey(), smooth));
+				}
+			}
+		}
+		List<ArrayList<String>> lineSets = new ArrayList<>();
+		if (crossValidation != null) {
+			for (int fold = 0 ; fold < crossValidation.getFoldAmount() ; fold++) {
+				lineSets.add(crossValidation.getLines(fold));
+			}
+		}
+		else {
+			lineSets.add(developmentText);
+		}
+		HalvingSearch search = new HalvingSearch(lineSets,
+			(subsets, x, y, smooth) -> {
+				float macroF1Total = 0;
+				for (ArrayList<String> lines : subsets) {
+					macroF1Total = macroF1Total + evaluateText(lines, languageList, x, y, smooth, onlyAlphabetic);
+				}
+				return macroF1Total / subsets.size();
+			},
+			charNgram -> {
+				System.out.println("Next: creating models for " + charNgram);
+				extendModels(trainFile, charNgram);
+			},
+			minCharNgram, maxCharNgram, halvingEta, halvingMinimumLines, sweepThreads);
+		if (crossValidation != null) {
+			for (int fold = 0 ; fold < crossValidation.getFoldAmount() ; fold++) {
+				for (ArrayList<String> subset : search.getSubsets(fold)) {
+					crossValidation.addSubset(fold, subset);
+				}
+			}
+		}
+		search.setBudget(searchEvaluationBudget, searchTimeBudget);
+		return search.search(combinations);
+	}
+	
+	private static void saveCheckpoint(TreeMap<Integer, TreeMap<Integer, ArrayList<Float>>> pendingTodoTable, TreeMap<Integer, String> tenbest) {
+		if (checkpoint != null) {
+			checkpoint.save(forkingResultTable, pendingTodoTable, tenbest);
+		}
 	}
 	
 	private static void printTodoTable() {
@@ -238,7 +488,7 @@ class TunPRF2 {
 					if (x-1 < minCharNgram) {
 						minCharNgram = x-1;
 						System.out.println("Next: creating models for " + minCharNgram);
-						languageList = createModels(trainFile,minCharNgram,minCharNgram,onlyAlphabetic);
+						extendModels(trainFile,minCharNgram);
 					}
 				}
 				else if (x>1 && !forkingResultTable.get(x-1).containsKey(y)) {
@@ -272,7 +522,7 @@ class TunPRF2 {
 					if (y+1 > maxCharNgram) {
 						maxCharNgram = y+1;
 						System.out.println("Next: creating models for " + maxCharNgram);
-						languageList = createModels(trainFile,maxCharNgram,maxCharNgram,onlyAlphabetic);
+						extendModels(trainFile,maxCharNgram);
 					}
 				}
 				else if (!forkingResultTable.get(x).get(y+1).containsKey(smooth)) {
@@ -389,7 +639,11 @@ class TunPRF2 {
 		return tenbest;
 	}
 	
+// with sweepThreads > 1 the parameter combinations of the table are evaluated at the same time,
+// each of them can still use evaluationThreads threads for its lines
+
 	private static void processTodoTable(ArrayList<String> textToBeEvaluated, List<String> languageList, TreeMap<Integer, TreeMap<Integer, ArrayList<Float>>> forkingTodoTable) {
+		List<Callable<Float>> evaluations = new ArrayList<>();
 		for (Map.Entry<Integer, TreeMap<Integer, ArrayList<Float>>> entry : forkingTodoTable.entrySet()) {
 			TreeMap<Integer, ArrayList<Float>> mxpms = new TreeMap<>();
 			mxpms = entry.getValue();
@@ -397,9 +651,35 @@ class TunPRF2 {
 				for (Float smooth : entry2.getValue()) {
 					int x = entry.getKey();
 					int y = entry2.getKey();
-					System.out.println("Evaluating: minCharNgram = " + x + ", maxCharNgram = " + y + ", smooth = " +  smooth);
-					evaluateToResultsTable(textToBeEvaluated, languageList, x, y, smooth);
+					if (checkpoint != null && forkingResultTable.containsKey(x) && forkingResultTable.get(x).containsKey(y) && forkingResultTable.get(x).get(y).containsKey(smooth)) {
+						System.out.println("Already evaluated: minCharNgram = " + x + ", maxCharNgram = " + y + ", smooth = " +  smooth);
+						continue;
+					}
+					if (sweepThreads > 1) {
+						evaluations.add(() -> {
+							System.out.println("Evaluating: minCharNgram = " + x + ", maxCharNgram = " + y + ", smooth = " +  smooth);
+							return evaluateToResultsTable(textToBeEvaluated, languageList, x, y, smooth);
+						});
+					}
+					else {
+						System.out.println("Evaluating: minCharNgram = " + x + ", maxCharNgram = " + y + ", smooth = " +  smooth);
+						evaluateToResultsTable(textToBeEvaluated, languageList, x, y, smooth);
+					}
+				}
+			}
+		}
+		if (!evaluations.isEmpty()) {
+			ExecutorService sweep = Executors.newFixedThreadPool(sweepThreads);
+			try {
+				for (Future<Float> evaluation : sweep.invokeAll(evaluations)) {
+					evaluation.get();
 				}
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Evaluating the todo table failed.", e.getCause());
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Evaluating the todo table failed.", e);
+			} finally {
+				sweep.shutdown();
 			}
 		}
 	}
@@ -421,7 +701,31 @@ class TunPRF2 {
 		return forkingTodoTable;
 	}
 	
-	private static void evaluateToResultsTable(ArrayList<String> textToBeEvaluated, List<String> languageList, int minCharNgram, int maxCharNgram, float smooth) {
+	private static float evaluateToResultsTable(ArrayList<String> textToBeEvaluated, List<String> languageList, int minCharNgram, int maxCharNgram, float smooth) {
+		float macroF1Score;
+		if (crossValidation != null) {
+			macroF1Score = evaluateFolds(languageList,minCharNgram,maxCharNgram,smooth);
+		}
+		else {
+			macroF1Score = evaluateText(textToBeEvaluated,languageList,minCharNgram,maxCharNgram,smooth,onlyAlphabetic);
+		}
+		putToResultsTable(minCharNgram, maxCharNgram, smooth, macroF1Score);
+		return macroF1Score;
+	}
+
+// the average of the macro F1 scores of the folds
+
+	private static float evaluateFolds(List<String> languageList, int minCharNgram, int maxCharNgram, float smooth) {
+		float macroF1Total = 0;
+		for (int fold = 0 ; fold < crossValidation.getFoldAmount() ; fold++) {
+			macroF1Total = macroF1Total + evaluateText(crossValidation.getLines(fold),languageList,minCharNgram,maxCharNgram,smooth,onlyAlphabetic);
+		}
+		return macroF1Total / crossValidation.getFoldAmount();
+	}
+
+// the only place where forkingResultTable is written to while evaluations may be running
+
+	private static synchronized void putToResultsTable(int minCharNgram, int maxCharNgram, float smooth, float macroF1Score) {
 		TreeMap<Float, Float> pmsc = new TreeMap<>();
 		TreeMap<Integer, TreeMap<Float, Float>> mxpmsc = new TreeMap<>();
 
@@ -429,16 +733,16 @@ class TunPRF2 {
 			mxpmsc = forkingResultTable.get(minCharNgram);
 			if (mxpmsc.containsKey(maxCharNgram)) {
 				pmsc = mxpmsc.get(maxCharNgram);
-				pmsc.put(smooth,evaluateText(textToBeEvaluated,languageList,minCharNgram,maxCharNgram,smooth,onlyAlphabetic));
+				pmsc.put(smooth,macroF1Score);
 			}
 			else {
-				pmsc.put(smooth,evaluateText(textToBeEvaluated,languageList,minCharNgram,maxCharNgram,smooth,onlyAlphabetic));
+				pmsc.put(smooth,macroF1Score);
 			}
 			mxpmsc.put(maxCharNgram,pmsc);
 			 
 		}
 		else {
-			pmsc.put(smooth,evaluateText(textToBeEvaluated,languageList,minCharNgram,maxCharNgram,smooth,onlyAlphabetic));
+			pmsc.put(smooth,macroF1Score);
 			mxpmsc.put(maxCharNgram,pmsc);
 		}
 		forkingResultTable.put(minCharNgram,mxpmsc);
@@ -505,55 +809,49 @@ class TunPRF2 {
 				}
 			}
 			
-			for (String line : textToBeEvaluated) {
-//			while ((line = reader.readLine()) != null) {
-				String mysterytext = line;
-				String correctlanguage = line;
-				
-//				System.out.println(line);
-				
-				mysterytext = mysterytext.replaceAll(".*\t", "");
-
-				correctlanguage = correctlanguage.replaceAll("\t.*", "");
-				correctlanguage = correctlanguage.replaceAll("\n", "");
-				correctlanguage = correctlanguage.replaceAll("\\W", "");
-
-// Käyttäen pelkkiä kirjaimia
-				if (onlyAlphabetic) {
-					mysterytext = mysterytext.replaceAll("[^\\p{L}\\p{M}′'’´ʹािीुूृेैोौंँः् া ি ী ু ূ ৃ ে ৈ ো ৌ।্্্я̄\\u07A6\\u07A7\\u07A8\\u07A9\\u07AA\\u07AB\\u07AC\\u07AD\\u07AE\\u07AF\\u07B0\\u0A81\\u0A82\\u0A83\\u0ABC\\u0ABD\\u0ABE\\u0ABF\\u0AC0\\u0AC1\\u0AC2\\u0AC3\\u0AC4\\u0AC5\\u0AC6\\u0AC7\\u0AC8\\u0AC9\\u0ACA\\u0ACB\\u0ACC\\u0ACD\\u0AD0\\u0AE0\\u0AE1\\u0AE2\\u0AE3\\u0AE4\\u0AE5\\u0AE6\\u0AE7\\u0AE8\\u0AE9\\u0AEA\\u0AEB\\u0AEC\\u0AED\\u0AEE\\u0AEF\\u0AF0\\u0AF1]", " ");
+			String[] mysterytexts = new String[textToBeEvaluated.size()];
+			String[] correctlanguages = new String[textToBeEvaluated.size()];
+			String[] identifiedLanguages = new String[textToBeEvaluated.size()];
+			
+			int fold = crossValidation == null ? -1 : crossValidation.getFold(textToBeEvaluated);
+			
+			if (fold >= 0) {
+				checkOrders(minCharNgram, maxCharNgram);
+				normalizeDevelopmentLines(textToBeEvaluated, mysterytexts, correctlanguages, onlyAlphabetic);
+				crossValidation.identify(fold, model, useTrieIndex ? trie : null, languageList, mysterytexts, minCharNgram, maxCharNgram, penaltymodifier, identifiedLanguages);
+				LineCounts counts = new LineCounts();
+				for (int i = 0 ; i < identifiedLanguages.length ; i++) {
+					counts.count(correctlanguages[i], identifiedLanguages[i]);
 				}
-				mysterytext = mysterytext.replaceAll("  *", " ");
-				mysterytext = mysterytext.replaceAll("^ ", "");
-				mysterytext = mysterytext.replaceAll(" $", "");
-//				System.out.println(mysterytext);
-				mysterytext = mysterytext.replaceAll("^", " ");
-				mysterytext = mysterytext.replaceAll("$", " ");
-//				System.out.println(mysterytext);
-//				mysterytext = mysterytext.toLowerCase();
-                
-                int pituus = mysterytext.length();
- //               System.out.println(pituus);
- //               if (pituus > 74) {
- //                   totallength = totallength + pituus;
- //               }
-                
-
-                String identifiedLanguage = "xxx";
-
-				identifiedLanguage = identifyTextProdRelFreq(mysterytext,languageList,minCharNgram,maxCharNgram,penaltymodifier);
-                
-                langShouldBe.put(correctlanguage,langShouldBe.get(correctlanguage)+1);
+				counts.addTo(langCorrect, langWrong, langShouldBe);
+			}
+			else if (useStatisticsCache && !useQuantizedModel && sketchModel == null && onlineModel == null) {
+				checkOrders(minCharNgram, maxCharNgram);
+				LineStatistics statistics = getLineStatistics(textToBeEvaluated, onlyAlphabetic);
+				correctlanguages = statistics.getCorrectLanguages();
+				statistics.identify(model, useTrieIndex ? trie : null, languageList, minCharNgram, maxCharNgram, penaltymodifier, identifiedLanguages, getEvaluationPool());
+				LineCounts counts = new LineCounts();
+				for (int i = 0 ; i < identifiedLanguages.length ; i++) {
+					counts.count(correctlanguages[i], identifiedLanguages[i]);
+				}
+				counts.addTo(langCorrect, langWrong, langShouldBe);
+			}
+			else {
+				normalizeDevelopmentLines(textToBeEvaluated, mysterytexts, correctlanguages, onlyAlphabetic);
+				for (LineCounts counts : identifyLines(mysterytexts,correctlanguages,identifiedLanguages,languageList,minCharNgram,maxCharNgram,penaltymodifier)) {
+					counts.addTo(langCorrect, langWrong, langShouldBe);
+				}
+			}
+			
+			for (int linenumber = 0 ; linenumber < identifiedLanguages.length ; linenumber++) {
+				String identifiedLanguage = identifiedLanguages[linenumber];
 
                 total++;
-                if (identifiedLanguage.equals(correctlanguage)) {
+                if (identifiedLanguage.equals(correctlanguages[linenumber])) {
                     correct++;
-                    langCorrect.put(identifiedLanguage,langCorrect.get(identifiedLanguage)+1);
                 }
                 else {
                     wrong++;
-//					System.out.println(identifiedLanguage);
-//					System.out.println(mysterytext + "\t" + correctlanguage + "\t" +  identifiedLanguage);
-                    langWrong.put(identifiedLanguage,langWrong.get(identifiedLanguage)+1);
                 }
                 totallinenumber++;
 				if (printingDevelopmentResults == true) {
@@ -661,6 +959,37 @@ class TunPRF2 {
 		return macroF1Score;
 	}
 
+// normalizes the lines of a development file into the texts to be identified and their correct languages
+
+	private static void normalizeDevelopmentLines(ArrayList<String> textToBeEvaluated, String[] mysterytexts, String[] correctlanguages, boolean onlyAlphabetic) {
+		int linenumber = 0;
+		
+		for (String line : textToBeEvaluated) {
+			String mysterytext = line;
+			String correctlanguage = line;
+			
+			mysterytext = mysterytext.replaceAll(".*\t", "");
+
+			correctlanguage = correctlanguage.replaceAll("\t.*", "");
+			correctlanguage = correctlanguage.replaceAll("\n", "");
+			correctlanguage = correctlanguage.replaceAll("\\W", "");
+
+// Käyttäen pelkkiä kirjaimia
+			if (onlyAlphabetic) {
+				mysterytext = mysterytext.replaceAll("[^\\p{L}\\p{M}′'’´ʹािीुूृेैोौंँः् া ি ী ু ূ ৃ ে ৈ ো ৌ।্্্я̄\\u07A6\\u07A7\\u07A8\\u07A9\\u07AA\\u07AB\\u07AC\\u07AD\\u07AE\\u07AF\\u07B0\\u0A81\\u0A82\\u0A83\\u0ABC\\u0ABD\\u0ABE\\u0ABF\\u0AC0\\u0AC1\\u0AC2\\u0AC3\\u0AC4\\u0AC5\\u0AC6\\u0AC7\\u0AC8\\u0AC9\\u0ACA\\u0ACB\\u0ACC\\u0ACD\\u0AD0\\u0AE0\\u0AE1\\u0AE2\\u0AE3\\u0AE4\\u0AE5\\u0AE6\\u0AE7\\u0AE8\\u0AE9\\u0AEA\\u0AEB\\u0AEC\\u0AED\\u0AEE\\u0AEF\\u0AF0\\u0AF1]", " ");
+			}
+			mysterytext = mysterytext.replaceAll("  *", " ");
+			mysterytext = mysterytext.replaceAll("^ ", "");
+			mysterytext = mysterytext.replaceAll(" $", "");
+			mysterytext = mysterytext.replaceAll("^", " ");
+			mysterytext = mysterytext.replaceAll("$", " ");
+
+			mysterytexts[linenumber] = mysterytext;
+			correctlanguages[linenumber] = correctlanguage;
+			linenumber++;
+		}
+	}
+
 	private static void evaluateFinal(ArrayList<String> textToBeEvaluated, List<String> languageList, int minCharNgram, int maxCharNgram, double penaltymodifier, boolean onlyAlphabetic) {
 		BufferedReader reader = null;
 		float macroF1Score = 0;
@@ -682,6 +1011,8 @@ class TunPRF2 {
 				System.out.println("Error while creating writer: "+e.getMessage());
 			}
 			
+			String[] mysterytexts = new String[textToBeEvaluated.size()];
+			
 			for (String line : textToBeEvaluated) {
 //			while ((line = reader.readLine()) != null) {
 				totallinenumber++;
@@ -707,10 +1038,13 @@ class TunPRF2 {
  //                   totallength = totallength + pituus;
  //               }
 				
-				String identifiedLanguage = "xxx";
-
-				identifiedLanguage = identifyTextProdRelFreq(mysterytext,languageList,minCharNgram,maxCharNgram,penaltymodifier);
-
+				mysterytexts[totallinenumber - 1] = mysterytext;
+			}
+			
+			String[] identifiedLanguages = new String[mysterytexts.length];
+			identifyLines(mysterytexts,null,identifiedLanguages,languageList,minCharNgram,maxCharNgram,penaltymodifier);
+			
+			for (String identifiedLanguage : identifiedLanguages) {
 				try {
 					writer.write(identifiedLanguage+"\n");
 				}
@@ -741,93 +1075,854 @@ class TunPRF2 {
 	}
 
 
+// the statistics are kept for every text evaluated, the development lines and the subsets of the
+// halving search
+
+	private static synchronized LineStatistics getLineStatistics(ArrayList<String> textToBeEvaluated, boolean onlyAlphabetic) {
+		LineStatistics statistics = lineStatistics.get(textToBeEvaluated);
+		if (statistics == null || !statistics.isFor(textToBeEvaluated, onlyAlphabetic)) {
+			String[] mysterytexts = new String[textToBeEvaluated.size()];
+			String[] correctlanguages = new String[textToBeEvaluated.size()];
+			normalizeDevelopmentLines(textToBeEvaluated, mysterytexts, correctlanguages, onlyAlphabetic);
+			statistics = new LineStatistics(textToBeEvaluated, onlyAlphabetic, mysterytexts, correctlanguages);
+			lineStatistics.put(textToBeEvaluated, statistics);
+		}
+		return statistics;
+	}
+
+	private static void checkOrders(int minCharNgram, int maxCharNgram) {
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			if (mappedModel != null ? !mappedModel.hasOrder(t) : !model.hasOrder(t)) {
+				throw new IllegalArgumentException("No character " + t + "-gram models have been created.");
+			}
+		}
+	}
+
+// identifies the normalized lines in chunks, on evaluationThreads threads when there are more
+// than one, writing the languages to identifiedLanguages in the order of the lines. When the
+// correct languages are given, every chunk also counts its own correct, wrong and should-be
+// amounts, which are returned in the order of the chunks to be added together.
+
+	private static List<LineCounts> identifyLines(String[] mysteryTexts, String[] correctLanguages, String[] identifiedLanguages, List<String> languageList, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		checkOrders(minCharNgram, maxCharNgram);
+		int chunkSize = Math.max(batchSize, mysteryTexts.length / (evaluationThreads * 4) + 1);
+		List<Callable<LineCounts>> chunks = new ArrayList<>();
+		for (int from = 0 ; from < mysteryTexts.length ; from += chunkSize) {
+			int chunkStart = from;
+			int chunkEnd = Math.min(mysteryTexts.length, from + chunkSize);
+			chunks.add(() -> {
+				identifyRange(mysteryTexts, chunkStart, chunkEnd, identifiedLanguages, languageList, minCharNgram, maxCharNgram, penaltymodifier);
+				LineCounts counts = new LineCounts();
+				if (correctLanguages != null) {
+					for (int i = chunkStart ; i < chunkEnd ; i++) {
+						counts.count(correctLanguages[i], identifiedLanguages[i]);
+					}
+				}
+				return counts;
+			});
+		}
+		List<LineCounts> chunkCounts = new ArrayList<>();
+		try {
+			if (evaluationThreads > 1) {
+				for (Future<LineCounts> chunk : getEvaluationPool().invokeAll(chunks)) {
+					chunkCounts.add(chunk.get());
+				}
+			}
+			else {
+				for (Callable<LineCounts> chunk : chunks) {
+					chunkCounts.add(chunk.call());
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Identifying the lines failed.", e.getCause());
+		} catch (Exception e) {
+			throw new RuntimeException("Identifying the lines failed.", e);
+		}
+		return chunkCounts;
+	}
+
+// a pool of another size is shut down when it is replaced, the tasks already in it still finish
+
+	private static synchronized ForkJoinPool getEvaluationPool() {
+		if (evaluationPool == null || evaluationPool.getParallelism() != evaluationThreads) {
+			if (evaluationPool != null) {
+				evaluationPool.shutdown();
+			}
+			evaluationPool = new ForkJoinPool(evaluationThreads);
+		}
+		return evaluationPool;
+	}
+
+// identifies the lines from..to one at a time, or a batch at a time with the BatchScorer,
+// which scores from the full precision rows like scoreSparse
+
+	private static void identifyRange(String[] mysteryTexts, int from, int to, String[] identifiedLanguages, List<String> languageList, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		if (useBatchScoring && !useQuantizedModel && mappedModel == null && sketchModel == null && onlineModel == null) {
+			int[] languageOrder = new int[languageList.size()];
+			for (int i = 0 ; i < languageOrder.length ; i++) {
+				languageOrder[i] = model.getLanguageId(languageList.get(i));
+			}
+			int[] identified = new int[batchSize];
+			BatchScorer scorer = batchScorers.get();
+			for (int start = from ; start < to ; start += batchSize) {
+				int end = Math.min(to, start + batchSize);
+				scorer.identify(mysteryTexts, start, end, model, useTrieIndex ? trie : null, languageOrder, minCharNgram, maxCharNgram, penaltymodifier, identified);
+				for (int i = start ; i < end ; i++) {
+					identifiedLanguages[i] = identified[i - start] >= 0 ? model.getLanguage(identified[i - start]) : "xxx";
+				}
+			}
+		}
+		else {
+			for (int i = from ; i < to ; i++) {
+				identifiedLanguages[i] = identifyTextProdRelFreq(mysteryTexts[i],languageList,minCharNgram,maxCharNgram,penaltymodifier);
+			}
+		}
+	}
+
+// the correct, wrong and should-be amounts of the languages in one chunk of lines
+
+	private static class LineCounts {
+		private Map<String, Integer> langCorrect = new LinkedHashMap<String, Integer>();
+		private Map<String, Integer> langWrong = new LinkedHashMap<String, Integer>();
+		private Map<String, Integer> langShouldBe = new LinkedHashMap<String, Integer>();
+
+		void count(String correctlanguage, String identifiedLanguage) {
+			langShouldBe.merge(correctlanguage, 1, Integer::sum);
+			if (identifiedLanguage.equals(correctlanguage)) {
+				langCorrect.merge(identifiedLanguage, 1, Integer::sum);
+			}
+			else {
+				langWrong.merge(identifiedLanguage, 1, Integer::sum);
+			}
+		}
+
+		void addTo(Map<String, Integer> correct, Map<String, Integer> wrong, Map<String, Integer> shouldBe) {
+			langCorrect.forEach((language, amount) -> correct.merge(language, amount, Integer::sum));
+			langWrong.forEach((language, amount) -> wrong.merge(language, amount, Integer::sum));
+			langShouldBe.forEach((language, amount) -> shouldBe.merge(language, amount, Integer::sum));
+		}
+	}
+
 // identifyText
 	
 	private static String identifyTextProdRelFreq(String mysteryText, List<String> languageList, int minCharNgram, int maxCharNgram, double penaltymodifier) {
 		
-		Map<String, Double> languagescores = new HashMap();
+		if (mappedModel != null) {
+			return identifyMapped(mysteryText, languageList, minCharNgram, maxCharNgram, penaltymodifier);
+		}
+		if (sketchModel != null) {
+			return identifySketched(mysteryText, languageList, minCharNgram, maxCharNgram, penaltymodifier);
+		}
+		if (onlineModel != null) {
+			return identifyOnline(mysteryText, languageList, minCharNgram, maxCharNgram, penaltymodifier);
+		}
+		
+		double[] languagescores = new double[model.getLanguageAmount()];
+
+		NgramExtractor extractor = extractors.get();
+		if (useTrieIndex) {
+			extractor.lookUp(mysteryText, trie, minCharNgram, maxCharNgram);
+		}
+		else {
+			extractor.lookUp(mysteryText, model, gramFilter, minCharNgram, maxCharNgram);
+		}
+
+		int gramamount = 0;
+		if (useQuantizedModel) {
+			gramamount = scoreQuantized(extractor, languagescores, minCharNgram, maxCharNgram, penaltymodifier);
+		}
+		else if (usePruning) {
+			gramamount = scorePruned(extractor, languagescores, minCharNgram, maxCharNgram, penaltymodifier);
+		}
+		else if (useSparseScoring) {
+			gramamount = scoreSparse(extractor, languagescores, minCharNgram, maxCharNgram, penaltymodifier);
+		}
+		else {
+			gramamount = scoreExhaustive(model, extractor, languagescores, minCharNgram, maxCharNgram, penaltymodifier);
+		}
+
+		Double winningscore = 1000.0;
+		String mysterylanguage = "xxx";
 
 		ListIterator languageiterator = languageList.listIterator();
 		while(languageiterator.hasNext()) {
 			Object element = languageiterator.next();
 			String kieli = (String) element;
-			languagescores.put(kieli, 0.0);
+			double languagescore = languagescores[model.getLanguageId(kieli)] / gramamount;
+			if (languagescore < winningscore) {
+				winningscore = languagescore;
+				mysterylanguage = kieli;
+			}
 		}
+		return (mysterylanguage);
+	}
 
-		int t = maxCharNgram;
-		int gramamount = 0;
+// identifyTextProdRelFreq with scoreExhaustive, reading the models from the memory-mapped file
 
-		while (t >= minCharNgram) {
-			int pituus = mysteryText.length();
-			int x = 0;
-			if (pituus > (t-1)) {
-				while (x < pituus - t + 1) {
-					String gram = mysteryText.substring(x,x+t);
-					gramamount = gramamount + 1;
-					languageiterator = languageList.listIterator();
-					while(languageiterator.hasNext()) {
-						Object element = languageiterator.next();
-						String kieli = (String) element;
-						TreeMap <String, Float> kiepro = new TreeMap<>();
-//						System.out.println("1: " + gram + " " + kieli);
-						if (gramDictCap.containsKey(gram)) {
-							kiepro = gramDictCap.get(gram);
-//							System.out.println("2: " + gram + "löytyi");
-							if (kiepro.containsKey(kieli)) {
-//								System.out.println("3: " + kieli + " " + kiepro.get(kieli));
-								double probability = -Math.log10(kiepro.get(kieli) / (typeAmounts.get(kieli).get(t)));
-//								System.out.println("3: " + probability + " score oli: " + languagescores.get(kieli));
-								languagescores.put(kieli, languagescores.get(kieli) +probability);
-//								System.out.println("3:  score on: " + languagescores.get(kieli));
-							}
-							else {
-								double penalty = -Math.log10(1/typeAmounts.get(kieli).get(t))*penaltymodifier;
-								languagescores.put(kieli, languagescores.get(kieli) +penalty);
-							}
-						}
-						else {
-							double penalty = -Math.log10(1/typeAmounts.get(kieli).get(t))*penaltymodifier;
-							languagescores.put(kieli, languagescores.get(kieli) +penalty);
-						}
-					}
-					x = x + 1;
-				}
+	private static String identifyMapped(String mysteryText, List<String> languageList, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		double[] languagescores = new double[mappedModel.getLanguageAmount()];
+
+		NgramExtractor extractor = extractors.get();
+		extractor.lookUp(mysteryText, mappedModel, gramFilter, minCharNgram, maxCharNgram);
+
+		int gramamount = scoreExhaustive(mappedModel, extractor, languagescores, minCharNgram, maxCharNgram, penaltymodifier);
+
+		Double winningscore = 1000.0;
+		String mysterylanguage = "xxx";
+
+		for (String kieli : languageList) {
+			double languagescore = languagescores[mappedModel.getLanguageId(kieli)] / gramamount;
+			if (languagescore < winningscore) {
+				winningscore = languagescore;
+				mysterylanguage = kieli;
 			}
-			t = t -1 ;
-		}
-		
-		languageiterator = languageList.listIterator();
-		while(languageiterator.hasNext()) {
-			Object element = languageiterator.next();
-			String language = (String) element;
-			languagescores.put(language, (languagescores.get(language)/gramamount));
 		}
+		return (mysterylanguage);
+	}
+
+// identifyTextProdRelFreq on the current snapshot of the online model, the n-grams looked up both
+// from the base and from the overlay of the lines added since
+
+	private static String identifyOnline(String mysteryText, List<String> languageList, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		OnlineModel.Snapshot snapshot = onlineModel.getSnapshot();
+		NgramModel current = snapshot.getModel();
+		double[] languagescores = new double[current.getLanguageAmount()];
+
+		NgramExtractor extractor = extractors.get();
+		extractor.lookUp(mysteryText, snapshot.getTrie(), minCharNgram, maxCharNgram);
+		NgramExtractor overlayExtractor = overlayExtractors.get();
+		overlayExtractor.lookUp(mysteryText, snapshot.getOverlay(), minCharNgram, maxCharNgram);
+
+		int gramamount = snapshot.score(extractor, overlayExtractor, languagescores, minCharNgram, maxCharNgram, penaltymodifier);
 
 		Double winningscore = 1000.0;
 		String mysterylanguage = "xxx";
 
-		languageiterator = languageList.listIterator();
-		while(languageiterator.hasNext()) {
-			Object element = languageiterator.next();
-			String kieli = (String) element;
-			if (languagescores.get(element) < winningscore) {
-				winningscore = languagescores.get(element);
+		for (String kieli : languageList) {
+			double languagescore = languagescores[current.getLanguageId(kieli)] / gramamount;
+			if (languagescore < winningscore) {
+				winningscore = languagescore;
 				mysterylanguage = kieli;
 			}
 		}
 		return (mysterylanguage);
 	}
-	
-	private static List createModels(String trainFile, int minCharNgram, int maxCharNgram, boolean onlyAlphabetic) {
-	
-		List<String> languageList = new ArrayList<String>();
-	
-		File file = new File(trainFile);
-		
-		int lineNumber = 0;
-		int ngramNumber = 0;
+
+// adds a labelled line in the format of the training file to the online model, from any thread.
+// Returns false when there is no online model to add it to or its language is not in the model.
+
+	static boolean addFeedback(String line) {
+		OnlineModel online = onlineModel;
+		if (online == null) {
+			return false;
+		}
+		return online.addLine(trainingText(line, onlyAlphabetic), trainingLanguage(line));
+	}
+
+// publishes the lines added so far without waiting for the publishing interval
+
+	static int publishFeedback() {
+		OnlineModel online = onlineModel;
+		if (online == null) {
+			return 0;
+		}
+		return online.publish();
+	}
+
+// identifyTextProdRelFreq with scoreExhaustive, the orders in the sketch scored from its estimates
+// and the rest from the model. An estimate of 0 gets the penalty.
+
+	private static String identifySketched(String mysteryText, List<String> languageList, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		int languageAmount = model.getLanguageAmount();
+		double[] languagescores = new double[languageAmount];
+		double[] penalties = new double[languageAmount];
+		float[] typeAmounts = new float[languageAmount];
+
+		NgramExtractor extractor = extractors.get();
+		if (useTrieIndex) {
+			extractor.lookUp(mysteryText, trie, minCharNgram, maxCharNgram);
+		}
+		else {
+			extractor.lookUp(mysteryText, model, gramFilter, minCharNgram, maxCharNgram);
+		}
+		char[] text = extractor.getText();
+
+		int t = maxCharNgram;
+		int gramamount = 0;
+
+		while (t >= minCharNgram) {
+			if (!sketchModel.hasOrder(t)) {
+				gramamount = gramamount + scoreExhaustive(model, extractor, languagescores, t, t, penaltymodifier);
+				t = t - 1;
+				continue;
+			}
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				penalties[kieli] = model.getPenalty(kieli, t)*penaltymodifier;
+				typeAmounts[kieli] = (float) model.getTypeAmount(kieli, t);
+			}
+			int grams = extractor.getGramAmount(t);
+			for (int x = 0 ; x < grams ; x++) {
+				gramamount = gramamount + 1;
+				long key = 0;
+				for (int i = 0 ; i < t ; i++) {
+					key = GramFilter.roll(key, text[x + i]);
+				}
+				for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+					int count = sketchModel.estimate(t, key, kieli);
+					if (count > 0) {
+						languagescores[kieli] = languagescores[kieli] + -Math.log10((float) count / typeAmounts[kieli]);
+					}
+					else {
+						languagescores[kieli] = languagescores[kieli] + penalties[kieli];
+					}
+				}
+			}
+			t = t -1 ;
+		}
+
+		Double winningscore = 1000.0;
+		String mysterylanguage = "xxx";
+
+		for (String kieli : languageList) {
+			double languagescore = languagescores[model.getLanguageId(kieli)] / gramamount;
+			if (languagescore < winningscore) {
+				winningscore = languagescore;
+				mysterylanguage = kieli;
+			}
+		}
+		return (mysterylanguage);
+	}
+
+// every language gets either the score of the n-gram or the penalty, returns the number of n-grams.
+// The rows are those of the model or of the memory-mapped model the gram ids were looked up from.
+
+	private static int scoreExhaustive(ScoreRows rows, NgramExtractor extractor, double[] languagescores, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		int languageAmount = rows.getLanguageAmount();
+		double[] penalties = new double[languageAmount];
+		double[] hitscores = new double[languageAmount];
+		boolean[] hits = new boolean[languageAmount];
+
+		int t = maxCharNgram;
+		int gramamount = 0;
+
+		while (t >= minCharNgram) {
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				penalties[kieli] = rows.getPenalty(kieli, t)*penaltymodifier;
+			}
+			int[] gramids = extractor.getGramIds(t);
+			int grams = extractor.getGramAmount(t);
+			for (int x = 0 ; x < grams ; x++) {
+				gramamount = gramamount + 1;
+				int gramid = gramids[x];
+				if (gramid >= 0) {
+					for (int row = rows.getRowStart(gramid) ; row < rows.getRowEnd(gramid) ; row++) {
+						hits[rows.getRowLanguage(row)] = true;
+						hitscores[rows.getRowLanguage(row)] = rows.getRowScore(row);
+					}
+				}
+				for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+					if (hits[kieli]) {
+						languagescores[kieli] = languagescores[kieli] + hitscores[kieli];
+						hits[kieli] = false;
+					}
+					else {
+						languagescores[kieli] = languagescores[kieli] + penalties[kieli];
+					}
+				}
+			}
+			t = t -1 ;
+		}
+		return gramamount;
+	}
+
+// like scoreExhaustive, but every pruningInterval n-grams the languages that can no longer win
+// are dropped and get an infinite score. With pruningMargin 0 a language is dropped only when
+// its score plus the smallest possible cost of the remaining n-grams is bigger than the score
+// plus the biggest possible cost of some other language, so the result is the same as with
+// scoreExhaustive. With a positive margin a language is dropped as soon as its average score
+// per n-gram so far is worse than that of the leader by more than the margin.
+
+	private static int scorePruned(NgramExtractor extractor, double[] languagescores, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		int languageAmount = model.getLanguageAmount();
+		double[] penalties = new double[languageAmount];
+		double[] hitscores = new double[languageAmount];
+		boolean[] hits = new boolean[languageAmount];
+		int[] active = new int[languageAmount];
+		for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+			active[kieli] = kieli;
+		}
+		int activeAmount = languageAmount;
+		int[] remaining = new int[maxCharNgram + 1];
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			remaining[t] = extractor.getGramAmount(t);
+		}
+
+		int gramamount = 0;
+
+		for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				penalties[kieli] = model.getPenalty(kieli, t)*penaltymodifier;
+			}
+			int[] gramids = extractor.getGramIds(t);
+			int grams = extractor.getGramAmount(t);
+			for (int x = 0 ; x < grams ; x++) {
+				gramamount = gramamount + 1;
+				remaining[t]--;
+				int gramid = gramids[x];
+				if (gramid >= 0) {
+					for (int row = model.getRowStart(gramid) ; row < model.getRowEnd(gramid) ; row++) {
+						hits[model.getRowLanguage(row)] = true;
+						hitscores[model.getRowLanguage(row)] = model.getRowScore(row);
+					}
+				}
+				for (int a = 0 ; a < activeAmount ; a++) {
+					int kieli = active[a];
+					if (hits[kieli]) {
+						languagescores[kieli] = languagescores[kieli] + hitscores[kieli];
+					}
+					else {
+						languagescores[kieli] = languagescores[kieli] + penalties[kieli];
+					}
+				}
+				if (gramid >= 0) {
+					for (int row = model.getRowStart(gramid) ; row < model.getRowEnd(gramid) ; row++) {
+						hits[model.getRowLanguage(row)] = false;
+					}
+				}
+				if (activeAmount > 1 && gramamount % pruningInterval == 0) {
+					activeAmount = pruneLanguages(languagescores, active, activeAmount, remaining, gramamount, minCharNgram, maxCharNgram, penaltymodifier);
+				}
+			}
+		}
+		return gramamount;
+	}
+
+	private static int pruneLanguages(double[] languagescores, int[] active, int activeAmount, int[] remaining, int gramamount, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		double[] lowerbounds = new double[activeAmount];
+		double bestupperbound = Double.POSITIVE_INFINITY;
+		double leaderscore = Double.POSITIVE_INFINITY;
+		for (int a = 0 ; a < activeAmount ; a++) {
+			int kieli = active[a];
+			double mincost = 0;
+			double maxcost = 0;
+			for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+				if (remaining[t] > 0) {
+					double penalty = model.getPenalty(kieli, t);
+					mincost = mincost + remaining[t] * Math.min(model.getMinScore(kieli, t), penalty*penaltymodifier);
+					maxcost = maxcost + remaining[t] * Math.max(penalty, penalty*penaltymodifier);
+				}
+			}
+			lowerbounds[a] = languagescores[kieli] + mincost;
+			bestupperbound = Math.min(bestupperbound, languagescores[kieli] + maxcost);
+			leaderscore = Math.min(leaderscore, languagescores[kieli]);
+		}
+// a little slack so that rounding differences between the bounds and the sums never drop the winner
+		double limit = bestupperbound + 1e-9 * Math.abs(bestupperbound) + 1e-9;
+		double marginlimit = leaderscore + pruningMargin * gramamount;
+		int kept = 0;
+		for (int a = 0 ; a < activeAmount ; a++) {
+			int kieli = active[a];
+			if (lowerbounds[a] > limit || (pruningMargin > 0 && languagescores[kieli] > marginlimit)) {
+				languagescores[kieli] = Double.POSITIVE_INFINITY;
+			}
+			else {
+				active[kept++] = kieli;
+			}
+		}
+		return kept;
+	}
+
+// every language starts as if it had missed all the n-grams of the line and only the languages
+// in the row of an n-gram get the difference between its score and the penalty. The sums are
+// those of scoreExhaustive added up in a different order, so they can differ from them in the
+// last bits, and a line whose two best languages are that close can get the other one of them.
+
+	private static int scoreSparse(NgramExtractor extractor, double[] languagescores, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		int languageAmount = model.getLanguageAmount();
+		double[] penalties = new double[languageAmount];
+
+		int gramamount = 0;
+
+		for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+			int grams = extractor.getGramAmount(t);
+			if (grams == 0) {
+				continue;
+			}
+			gramamount = gramamount + grams;
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				penalties[kieli] = model.getPenalty(kieli, t)*penaltymodifier;
+				languagescores[kieli] = languagescores[kieli] + grams * penalties[kieli];
+			}
+			int[] gramids = extractor.getGramIds(t);
+			for (int x = 0 ; x < grams ; x++) {
+				int gramid = gramids[x];
+				if (gramid >= 0) {
+					for (int row = model.getRowStart(gramid) ; row < model.getRowEnd(gramid) ; row++) {
+						int kieli = model.getRowLanguage(row);
+						languagescores[kieli] = languagescores[kieli] + (model.getRowScore(row) - penalties[kieli]);
+					}
+				}
+			}
+		}
+		return gramamount;
+	}
+	
+// sums the buckets of the hits and counts the misses of every language for each order as integers,
+// the scale of the language and order turns them into a score only once per order
+
+	private static int scoreQuantized(NgramExtractor extractor, double[] languagescores, int minCharNgram, int maxCharNgram, double penaltymodifier) {
+		int languageAmount = model.getLanguageAmount();
+		long[] bucketsums = new long[languageAmount];
+		int[] hitamounts = new int[languageAmount];
+		double penaltybucket = quantizedModel.getMaxBucket() * penaltymodifier;
+
+		int gramamount = 0;
+
+		for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+			int grams = extractor.getGramAmount(t);
+			if (grams == 0) {
+				continue;
+			}
+			gramamount = gramamount + grams;
+			int[] gramids = extractor.getGramIds(t);
+			for (int x = 0 ; x < grams ; x++) {
+				int gramid = gramids[x];
+				if (gramid >= 0) {
+					for (int row = quantizedModel.getRowStart(gramid) ; row < quantizedModel.getRowEnd(gramid) ; row++) {
+						int kieli = quantizedModel.getRowLanguage(row);
+						bucketsums[kieli] = bucketsums[kieli] + quantizedModel.getRowBucket(row);
+						hitamounts[kieli]++;
+					}
+				}
+			}
+			for (int kieli = 0 ; kieli < languageAmount ; kieli++) {
+				languagescores[kieli] = languagescores[kieli] + quantizedModel.getScale(kieli, t) * (bucketsums[kieli] + (grams - hitamounts[kieli]) * penaltybucket);
+				bucketsums[kieli] = 0;
+				hitamounts[kieli] = 0;
+			}
+		}
+		return gramamount;
+	}
+
+// compares the macro F1 of the full precision scores with 16 and 8 bit quantized ones
+
+	private static void printQuantizationReport(ArrayList<String> textToBeEvaluated, List<String> languageList, int minCharNgram, int maxCharNgram, float smooth) {
+		boolean wasQuantized = useQuantizedModel;
+		QuantizedModel oldQuantizedModel = quantizedModel;
+
+		useQuantizedModel = false;
+		float fullF1Score = evaluateText(textToBeEvaluated, languageList, minCharNgram, maxCharNgram, smooth, onlyAlphabetic);
+		System.out.println("Quantization report: minCharNgram = " + minCharNgram + ", maxCharNgram = " + maxCharNgram + ", smooth = " + smooth);
+		System.out.println("Full precision model: " + model.scoreMemoryBytes() + " bytes of scores, macro F1 = " + fullF1Score);
+
+		for (int bits : new int[] {16, 8}) {
+			quantizedModel = new QuantizedModel(model, bits);
+			useQuantizedModel = true;
+			float quantizedF1Score = evaluateText(textToBeEvaluated, languageList, minCharNgram, maxCharNgram, smooth, onlyAlphabetic);
+			System.out.println(bits + " bit quantized model: " + quantizedModel.memoryBytes() + " bytes of scores, macro F1 = " + quantizedF1Score + ", difference = " + (quantizedF1Score - fullF1Score));
+		}
+
+		useQuantizedModel = wasQuantized;
+		quantizedModel = oldQuantizedModel;
+	}
+	
+// compares the macro F1 of exact counts for the orders from sketchMinOrder up with count-min
+// sketches of different sizes
+
+	private static void printSketchReport(ArrayList<String> textToBeEvaluated, List<String> languageList, int minCharNgram, int maxCharNgram, float smooth) {
+		int fromOrder = Math.max(minCharNgram, sketchMinOrder);
+		if (fromOrder > maxCharNgram) {
+			System.out.println("Sketch report: no orders from " + sketchMinOrder + " up between " + minCharNgram + " and " + maxCharNgram + ".");
+			return;
+		}
+		SketchModel oldSketchModel = sketchModel;
+
+		sketchModel = null;
+		float exactF1Score = evaluateText(textToBeEvaluated, languageList, minCharNgram, maxCharNgram, smooth, onlyAlphabetic);
+		long exactBytes = 0;
+		for (int gram = 0 ; gram < model.getGramAmount() ; gram++) {
+			if (model.getGramOrder(gram) >= fromOrder && model.getGramOrder(gram) <= maxCharNgram) {
+				exactBytes = exactBytes + 4 + (model.getRowEnd(gram) - model.getRowStart(gram)) * 12L;
+			}
+		}
+		System.out.println("Sketch report: minCharNgram = " + minCharNgram + ", maxCharNgram = " + maxCharNgram + ", smooth = " + smooth + ", sketched orders " + fromOrder + "-" + maxCharNgram);
+		System.out.println("Exact counts: " + exactBytes + " bytes of scores, macro F1 = " + exactF1Score);
+
+		for (long bytes = 1 << 14 ; bytes <= 1 << 24 ; bytes = bytes * 4) {
+			sketchModel = SketchModel.build(model, fromOrder, maxCharNgram, bytes);
+			float sketchF1Score = evaluateText(textToBeEvaluated, languageList, minCharNgram, maxCharNgram, smooth, onlyAlphabetic);
+			System.out.println("Sketches of " + bytes + " bytes per order: " + sketchModel.memoryBytes() + " bytes, macro F1 = " + sketchF1Score + ", difference = " + (sketchF1Score - exactF1Score));
+		}
+
+		sketchModel = oldSketchModel;
+	}
+	
+	private static List createModels(String trainFile, int minCharNgram, int maxCharNgram, boolean onlyAlphabetic) {
+	
+		System.out.println(model.typeAmountsToString());
 		
-		System.out.println(typeAmounts);
+		List<String> languageList = countModels(model, trainFile, minCharNgram, maxCharNgram, onlyAlphabetic, crossValidation);
+			
+		System.out.println(model.typeAmountsToString());
+			
+// turning the counts into ready to add scores, the smoothing value is applied when evaluating
+			
+		finishModels();
+		
+		return (languageList);
+	}
+
+	private static void finishModels() {
+		model.finish();
+		if (useTrieIndex) {
+			trie = new NgramTrie(model);
+		}
+		if (useQuantizedModel) {
+			quantizedModel = new QuantizedModel(model, quantizationBits);
+		}
+		gramFilter = useGramFilter && !useTrieIndex ? GramFilter.build(model, gramFilterBits) : null;
+	}
+
+// creates the models of one more order. With useSpeculativeModels the order has usually already
+// been counted into a model of its own in the background while the last todo table was being
+// evaluated, and it is merged into the model here, between the rounds when nothing is being
+// identified. The counted orders are kept, so an order asked for again is merged again just
+// like createModels would count it again.
+
+	private static void extendModels(String trainFile, int charNgram) {
+		if (!useSpeculativeModels || crossValidation != null) {
+			createModels(trainFile, charNgram, charNgram, onlyAlphabetic);
+			return;
+		}
+		speculate(trainFile, charNgram);
+		NgramModel counted;
+		try {
+			counted = speculativeModels.get(charNgram).get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Creating the models for " + charNgram + " failed.", e.getCause());
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Creating the models for " + charNgram + " failed.", e);
+		}
+		System.out.println(model.typeAmountsToString());
+		model.mergeOrders(counted, charNgram, charNgram);
+		System.out.println(model.typeAmountsToString());
+		finishModels();
+		speculateModels(trainFile);
+	}
+
+// starts counting the orders just below and above the ones the model has. Not with cross-validation,
+// the counts of the folds are kept while counting into the model itself.
+
+	private static void speculateModels(String trainFile) {
+		if (!useSpeculativeModels || crossValidation != null) {
+			return;
+		}
+		int lowest = 1;
+		while (lowest < model.getMaxOrder() && !model.hasOrder(lowest)) {
+			lowest++;
+		}
+		speculate(trainFile, lowest - 1);
+		speculate(trainFile, model.getMaxOrder() + 1);
+	}
+
+	private static synchronized void speculate(String trainFile, int charNgram) {
+		if (charNgram < 1 || speculativeModels.containsKey(charNgram)) {
+			return;
+		}
+		if (speculation == null) {
+			speculation = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "speculative models");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		speculativeModels.put(charNgram, speculation.submit(() -> {
+			NgramModel counted = new NgramModel();
+			countModels(counted, trainFile, charNgram, charNgram, onlyAlphabetic, null);
+			return counted;
+		}));
+	}
+
+// the memory-mapped models are used only if they have been written from models that could be loaded
+// for the training file, otherwise they are written again. Like loadModels this does not read the
+// training file, which does not have to be there where the models are served.
+
+	private static boolean openMappedModel(String trainFile, int minCharNgram, int maxCharNgram) {
+		if (!new File(mappedModelFile).exists()) {
+			return false;
+		}
+		MappedModel opened;
+		try {
+			opened = MappedModel.open(mappedModelFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		if (opened.isOnlyAlphabetic() != onlyAlphabetic) {
+			System.out.println("The models in " + mappedModelFile + " have been created with onlyAlphabetic = " + opened.isOnlyAlphabetic() + ", writing them again.");
+			return false;
+		}
+		if (!madeFrom(opened.getTrainingFingerprint(), trainFile)) {
+			System.out.println("The models in " + mappedModelFile + " have not been created from " + trainFile + ", writing them again.");
+			return false;
+		}
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			if (!opened.hasOrder(t)) {
+				System.out.println("The models in " + mappedModelFile + " do not have the character " + t + "-grams.");
+				return false;
+			}
+		}
+		mappedModel = opened;
+		gramFilter = useGramFilter ? GramFilter.build(mappedModel, gramFilterBits) : null;
+		return true;
+	}
+
+// like createModels followed by sketchModels, but the orders from sketchMinOrder up are counted from
+// the training file straight into the sketch, so their exact counts are never held in memory
+
+	private static List<String> createSketchedModels(String trainFile, int minCharNgram, int maxCharNgram, boolean onlyAlphabetic) {
+		sketchModel = new SketchModel(Math.max(minCharNgram, sketchMinOrder), maxCharNgram, sketchBytes);
+		List<String> languageList = new ArrayList<String>();
+		NgramExtractor extractor = extractors.get();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(new File(trainFile)));
+			String line = "";
+			while ((line = reader.readLine()) != null) {
+				String language = trainingLanguage(line);
+				if (!languageList.contains(language)) {
+					languageList.add(language);
+					int languageId = model.addLanguage(language);
+					for (int t = maxCharNgram ; t >= sketchModel.getFromOrder() ; t--) {
+						model.resetTypeAmount(languageId, t);
+					}
+				}
+				extractor.sketch(trainingText(line, onlyAlphabetic), sketchModel, model, model.getLanguageId(language));
+			}
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+		System.out.println("Orders from " + sketchModel.getFromOrder() + " up counted into count-min sketches of " + sketchModel.memoryBytes() + " bytes.");
+		if (minCharNgram < sketchModel.getFromOrder()) {
+			countModels(model, trainFile, minCharNgram, sketchModel.getFromOrder() - 1, onlyAlphabetic, null);
+		}
+		System.out.println(model.typeAmountsToString());
+		finishModels();
+		return languageList;
+	}
+
+// the orders from sketchMinOrder up are moved into a count-min sketch of sketchBytes bytes per order
+// and only their typeAmounts are kept in the model
+
+	private static void sketchModels() {
+		if (model.getMaxOrder() < sketchMinOrder) {
+			return;
+		}
+		sketchModel = SketchModel.build(model, sketchMinOrder, model.getMaxOrder(), sketchBytes);
+		NgramModel exact = new NgramModel();
+		for (int t = 1 ; t <= model.getMaxOrder() ; t++) {
+			if (!model.hasOrder(t)) {
+				continue;
+			}
+			if (t < sketchMinOrder) {
+				exact.addCounts(model, t, t);
+			}
+			else {
+				for (int kieli = 0 ; kieli < model.getLanguageAmount() ; kieli++) {
+					exact.addTypeAmount(exact.addLanguage(model.getLanguage(kieli)), t, model.getTypeAmount(kieli, t));
+				}
+			}
+		}
+		System.out.println("Orders from " + sketchMinOrder + " up in count-min sketches of " + sketchModel.memoryBytes() + " bytes.");
+		model = exact;
+		finishModels();
+	}
+
+// a saved model is used only if it has been counted from the same training file, or merged from
+// partial models, with the same onlyAlphabetic and has all the orders
+
+	private static boolean loadModels(String trainFile, int minCharNgram, int maxCharNgram) {
+		if (!new File(modelFile).exists()) {
+			return false;
+		}
+		ModelFile loaded;
+		try {
+			loaded = ModelFile.load(modelFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		if (!madeFrom(loaded.getTrainingFingerprint(), trainFile)) {
+			System.out.println("The models in " + modelFile + " have not been created from " + trainFile + ", creating them again.");
+			return false;
+		}
+		if (loaded.isOnlyAlphabetic() != onlyAlphabetic) {
+			System.out.println("The models in " + modelFile + " have been created with onlyAlphabetic = " + loaded.isOnlyAlphabetic() + ", creating them again.");
+			return false;
+		}
+		for (int t = minCharNgram ; t <= maxCharNgram ; t++) {
+			if (!loaded.getModel().hasOrder(t)) {
+				System.out.println("The models in " + modelFile + " do not have the character " + t + "-grams, creating them again.");
+				return false;
+			}
+		}
+		model = loaded.getModel();
+		modelFingerprint = loaded.getTrainingFingerprint();
+		finishModels();
+		return true;
+	}
+
+	private static void saveModels() {
+		try {
+			ModelFile.save(model, onlyAlphabetic, modelFingerprint, modelFile);
+			System.out.println("Models saved to " + modelFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+// true for models counted from the training file, merged from partial models, or saved for a
+// training file that is not there to be compared with, as the models could not be counted again
+// anyway. The training file is not read.
+
+	private static boolean madeFrom(String trainingFingerprint, String trainFile) {
+		if (trainingFingerprint.equals(ModelFile.MERGED) || !new File(trainFile).exists()) {
+			return true;
+		}
+		return trainingFingerprint.equals(ModelFile.fingerprint(trainFile));
+	}
+
+// counts the n-grams of the training file into the given model, which does not have to be the one
+// used for identifying, and into the folds when they are given
+
+	private static List<String> countModels(NgramModel model, String trainFile, int minCharNgram, int maxCharNgram, boolean onlyAlphabetic, CrossValidation folds) {
+	
+		if (useSpilling && folds == null) {
+			return countModelsSpilling(model, trainFile, minCharNgram, maxCharNgram, onlyAlphabetic);
+		}
+		if (useCorpusCache) {
+			return countCorpus(model, getTrainingCorpus(trainFile, onlyAlphabetic), minCharNgram, maxCharNgram, folds);
+		}
+		if (trainingThreads > 1 && folds == null) {
+			return countModelsInChunks(model, trainFile, minCharNgram, maxCharNgram, onlyAlphabetic);
+		}
+		
+		List<String> languageList = new ArrayList<String>();
+	
+		File file = new File(trainFile);
+		
+		int lineNumber = 0;
+		int ngramNumber = 0;
+		boolean keepingLines = folds != null && !folds.hasLines();
 		
 		BufferedReader reader = null;
 		try {
@@ -839,103 +1934,44 @@ class TunPRF2 {
 			Double aika = (double)System.currentTimeMillis();
 			
 			while ((line = reader.readLine()) != null) {
-				String text = line;
-				String language = line;
 				
 //				System.out.println("Line:" + lineNumber + " ngrams: " + ngramNumber);
 				
-				text = text.replaceAll(".*\t", "");
-				
-// Käyttäen pelkkiä kirjaimia
-				if (onlyAlphabetic) {
-					text = text.replaceAll("[^\\p{L}\\p{M}′'’´ʹािीुूृेैोौंँः् া ি ী ু ূ ৃ ে ৈ ো ৌ।্্্я̄\\u07A6\\u07A7\\u07A8\\u07A9\\u07AA\\u07AB\\u07AC\\u07AD\\u07AE\\u07AF\\u07B0\\u0A81\\u0A82\\u0A83\\u0ABC\\u0ABD\\u0ABE\\u0ABF\\u0AC0\\u0AC1\\u0AC2\\u0AC3\\u0AC4\\u0AC5\\u0AC6\\u0AC7\\u0AC8\\u0AC9\\u0ACA\\u0ACB\\u0ACC\\u0ACD\\u0AD0\\u0AE0\\u0AE1\\u0AE2\\u0AE3\\u0AE4\\u0AE5\\u0AE6\\u0AE7\\u0AE8\\u0AE9\\u0AEA\\u0AEB\\u0AEC\\u0AED\\u0AEE\\u0AEF\\u0AF0\\u0AF1]", " ");
-				}
-				text = text.replaceAll("  *", " ");
-				text = text.replaceAll("^ ", "");
-				text = text.replaceAll(" $", "");
-//				System.out.println(text);
-				text = text.replaceAll("^", " ");
-				text = text.replaceAll("$", " ");
-//				System.out.println(text);
-//				text = text.toLowerCase();
-				
-				int pituus = text.length();
-//				System.out.println("Text length = " + pituus);
-				
-				language = language.replaceAll("\t.*", "");
-				language = language.replaceAll("\n", "");
-				language = language.replaceAll("\\W", "");
+				String text = trainingText(line, onlyAlphabetic);
+				String language = trainingLanguage(line);
 				
 				if (!languageList.contains(language)) {
 					
 					languageList.add(language);
+					int languageId = model.addLanguage(language);
 					int x = maxCharNgram;
-					TreeMap <Integer, Float> typam = new TreeMap<>();
-					if (typeAmounts.containsKey(language)) {
-						typam = typeAmounts.get(language);
-					}
 					while (x >= minCharNgram) {
-						typam.put(x, (float) 0.0);
-//						typeAmounts.put(language,x,0.0);
+						model.resetTypeAmount(languageId, x);
+						if (folds != null) {
+							folds.resetTypeAmount(languageId, x);
+						}
 						x--;
 					}
-					typeAmounts.put(language,typam);
 				}
+				int languageId = model.getLanguageId(language);
 				
-				int t = maxCharNgram;
-				
-				while (t >= minCharNgram) {
-					int x = 0;
-					int typeAmountCounter = 0;
-//					System.out.println(t + " " + text);
-					if (pituus > (t-1)) {
-						while (x < pituus - t + 1) {
-							
-							gram = text.substring(x,x+t);
-							
-//							System.out.println(x + " " + gram);
-							
-							if (gramDictCap.containsKey(gram)) {
-								TreeMap <String, Float> kiepro = new TreeMap<>();
-								kiepro = gramDictCap.get(gram);
-								if (kiepro.containsKey(language)) {
-//									System.out.println(gram + " " + language + " " + kiepro.get(language));
-									kiepro.put(language, kiepro.get(language)+1);
-//									System.out.println(gram + " " + language + " " + kiepro.get(language));
-									gramDictCap.put(gram,kiepro);
-								}
-								else {
-									kiepro.put(language, (float) 1.0);
-									gramDictCap.put(gram, kiepro);
-	//								System.out.println(gram + " " + language + " " + kiepro.get(language));
-									ngramNumber++;
-
-								}
-							}
-							else {
-								TreeMap <String, Float> kiepro = new TreeMap<>();
-								kiepro.put(language, (float) 1.0);
-								gramDictCap.put(gram, kiepro);
-//								System.out.println(gram + " " + language + " " + kiepro.get(language));
-								ngramNumber++;
-
-							}
-							typeAmountCounter++;
-							
-							x = x + 1;
-						}
+				if (folds != null) {
+					int fold = folds.getFoldOf(lineNumber);
+					if (keepingLines) {
+						folds.addLine(fold, line);
+					}
+					NgramExtractor extractor = extractors.get();
+					ngramNumber = ngramNumber + extractor.count(text, model, languageId, minCharNgram, maxCharNgram, folds.getCounts(fold));
+					for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+						folds.addTypeAmount(fold, languageId, t, extractor.getGramAmount(t));
 					}
-					TreeMap <Integer, Float> typam = new TreeMap<>();
-					typam = typeAmounts.get(language);
-					typam.put(t,typam.get(t)+typeAmountCounter);
-					typeAmounts.put(language,typam);
-					t = t -1 ;
+				}
+				else {
+					ngramNumber = ngramNumber + extractors.get().count(text, model, languageId, minCharNgram, maxCharNgram);
 				}
 				lineNumber ++;
 			}
 			
-			System.out.println(typeAmounts);
-			
 			Double aika2 = (double)System.currentTimeMillis();
 //			System.out.println(aika2-aika);
 			
@@ -954,6 +1990,265 @@ class TunPRF2 {
 		return (languageList);
 	}
     
+// like countModels, but trainingThreads threads normalize and count chunks of trainingChunkLines
+// lines into models of their own while the chunks already counted are added to the model in the
+// order they are in the file. The model gets the same languages, grams and counts in the same
+// order as it would from counting the lines one by one. At most two chunks per thread are waiting
+// at a time, so the file is not read into memory.
+
+	private static List<String> countModelsInChunks(NgramModel model, String trainFile, int minCharNgram, int maxCharNgram, boolean onlyAlphabetic) {
+		List<String> languageList = new ArrayList<String>();
+		ExecutorService workers = Executors.newFixedThreadPool(trainingThreads);
+		ArrayDeque<Future<NgramModel>> counting = new ArrayDeque<>();
+		
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(new File(trainFile)));
+			
+			List<String> chunk = new ArrayList<>();
+			String line = "";
+			while ((line = reader.readLine()) != null) {
+				chunk.add(line);
+				if (chunk.size() == trainingChunkLines) {
+					counting.add(workers.submit(countChunk(chunk, minCharNgram, maxCharNgram, onlyAlphabetic)));
+					chunk = new ArrayList<>();
+					if (counting.size() >= trainingThreads * 2) {
+						addChunk(model, counting.poll().get(), languageList, minCharNgram, maxCharNgram);
+					}
+				}
+			}
+			if (!chunk.isEmpty()) {
+				counting.add(workers.submit(countChunk(chunk, minCharNgram, maxCharNgram, onlyAlphabetic)));
+			}
+			while (!counting.isEmpty()) {
+				addChunk(model, counting.poll().get(), languageList, minCharNgram, maxCharNgram);
+			}
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Counting the training file failed.", e.getCause());
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Counting the training file failed.", e);
+		} finally {
+			workers.shutdownNow();
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+		return (languageList);
+	}
+
+// like countModels, but the n-grams are counted into a buffer of at most spillingGrams n-grams
+// which is written to a sorted run in spillingDirectory whenever it is full. The runs are merged
+// into the model in the end. The model gets the same languages, counts and typeAmounts as from
+// countModels, only the grams of the orders counted get their ids in a different order.
+
+	private static List<String> countModelsSpilling(NgramModel model, String trainFile, int minCharNgram, int maxCharNgram, boolean onlyAlphabetic) {
+		List<String> languageList = new ArrayList<String>();
+		SpillingCounter counter = new SpillingCounter(minCharNgram, maxCharNgram, spillingGrams, new File(spillingDirectory), onlyAlphabetic);
+		
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(new File(trainFile)));
+			
+			NgramExtractor extractor = extractors.get();
+			String line = "";
+			while ((line = reader.readLine()) != null) {
+				counter.addLine(trainingText(line, onlyAlphabetic), trainingLanguage(line), extractor);
+			}
+			for (String language : counter.getLanguageList()) {
+				languageList.add(language);
+				int languageId = model.addLanguage(language);
+				for (int x = maxCharNgram ; x >= minCharNgram ; x--) {
+					model.resetTypeAmount(languageId, x);
+				}
+			}
+			if (counter.getRunAmount() > 0) {
+				System.out.println("Merging " + counter.getRunAmount() + " runs of at most " + spillingGrams + " n-grams.");
+			}
+			counter.addTo(model);
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+		return (languageList);
+	}
+
+	private static Callable<NgramModel> countChunk(List<String> lines, int minCharNgram, int maxCharNgram, boolean onlyAlphabetic) {
+		return () -> {
+			NgramModel counted = new NgramModel();
+			NgramExtractor extractor = extractors.get();
+			for (String line : lines) {
+				int languageId = counted.addLanguage(trainingLanguage(line));
+				extractor.count(trainingText(line, onlyAlphabetic), counted, languageId, minCharNgram, maxCharNgram);
+			}
+			return counted;
+		};
+	}
+
+// with useCorpusCache the training file is read and normalized only once, by the first countModels
+
+	private static synchronized TrainingCorpus getTrainingCorpus(String trainFile, boolean onlyAlphabetic) {
+		if (trainingCorpus == null || !trainingCorpus.isFor(trainFile, onlyAlphabetic)) {
+			trainingCorpus = null;
+			TrainingCorpus corpus = new TrainingCorpus(trainFile, onlyAlphabetic);
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new FileReader(new File(trainFile)));
+				String line = "";
+				while ((line = reader.readLine()) != null) {
+					corpus.addLine(trainingText(line, onlyAlphabetic), trainingLanguage(line));
+				}
+			} catch (FileNotFoundException e) {
+				e.printStackTrace();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					if (reader != null) {
+						reader.close();
+					}
+				} catch (IOException e) {
+				}
+			}
+			System.out.println("Kept " + corpus.getLineAmount() + " normalized lines of " + trainFile + " in " + corpus.memoryBytes() + " bytes.");
+			trainingCorpus = corpus;
+		}
+		return trainingCorpus;
+	}
+
+// countModels and countModelsInChunks over the normalized lines of the corpus
+
+	private static List<String> countCorpus(NgramModel model, TrainingCorpus corpus, int minCharNgram, int maxCharNgram, CrossValidation folds) {
+		List<String> languageList = new ArrayList<String>();
+		
+		if (trainingThreads > 1 && folds == null) {
+			ExecutorService workers = Executors.newFixedThreadPool(trainingThreads);
+			ArrayDeque<Future<NgramModel>> counting = new ArrayDeque<>();
+			try {
+				for (int from = 0 ; from < corpus.getLineAmount() ; from += trainingChunkLines) {
+					counting.add(workers.submit(countCorpusChunk(corpus, from, Math.min(corpus.getLineAmount(), from + trainingChunkLines), minCharNgram, maxCharNgram)));
+					if (counting.size() >= trainingThreads * 2) {
+						addChunk(model, counting.poll().get(), languageList, minCharNgram, maxCharNgram);
+					}
+				}
+				while (!counting.isEmpty()) {
+					addChunk(model, counting.poll().get(), languageList, minCharNgram, maxCharNgram);
+				}
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Counting the training file failed.", e.getCause());
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Counting the training file failed.", e);
+			} finally {
+				workers.shutdownNow();
+			}
+			return (languageList);
+		}
+		
+		boolean keepingLines = folds != null && !folds.hasLines();
+		NgramExtractor extractor = extractors.get();
+		for (int line = 0 ; line < corpus.getLineAmount() ; line++) {
+			String language = corpus.getLanguage(line);
+			if (!languageList.contains(language)) {
+				languageList.add(language);
+				int languageId = model.addLanguage(language);
+				for (int x = maxCharNgram ; x >= minCharNgram ; x--) {
+					model.resetTypeAmount(languageId, x);
+					if (folds != null) {
+						folds.resetTypeAmount(languageId, x);
+					}
+				}
+			}
+			int languageId = model.getLanguageId(language);
+			if (folds != null) {
+				int fold = folds.getFoldOf(line);
+				if (keepingLines) {
+					folds.addLine(fold, corpus.getLine(line));
+				}
+				extractor.count(corpus.getBuffer(), corpus.getLineStart(line), corpus.getLineLength(line), model, languageId, minCharNgram, maxCharNgram, folds.getCounts(fold));
+				for (int t = maxCharNgram ; t >= minCharNgram ; t--) {
+					folds.addTypeAmount(fold, languageId, t, extractor.getGramAmount(t));
+				}
+			}
+			else {
+				extractor.count(corpus.getBuffer(), corpus.getLineStart(line), corpus.getLineLength(line), model, languageId, minCharNgram, maxCharNgram, null);
+			}
+		}
+		return (languageList);
+	}
+
+	private static Callable<NgramModel> countCorpusChunk(TrainingCorpus corpus, int from, int to, int minCharNgram, int maxCharNgram) {
+		return () -> {
+			NgramModel counted = new NgramModel();
+			NgramExtractor extractor = extractors.get();
+			for (int line = from ; line < to ; line++) {
+				int languageId = counted.addLanguage(corpus.getLanguage(line));
+				extractor.count(corpus.getBuffer(), corpus.getLineStart(line), corpus.getLineLength(line), counted, languageId, minCharNgram, maxCharNgram, null);
+			}
+			return counted;
+		};
+	}
+
+// the typeAmounts of a language start from 0 when it is first seen, as in countModels
+
+	private static void addChunk(NgramModel model, NgramModel counted, List<String> languageList, int minCharNgram, int maxCharNgram) {
+		for (int kieli = 0 ; kieli < counted.getLanguageAmount() ; kieli++) {
+			String language = counted.getLanguage(kieli);
+			if (!languageList.contains(language)) {
+				languageList.add(language);
+				int languageId = model.addLanguage(language);
+				for (int x = maxCharNgram ; x >= minCharNgram ; x--) {
+					model.resetTypeAmount(languageId, x);
+				}
+			}
+		}
+		model.addCounts(counted, minCharNgram, maxCharNgram);
+	}
+
+// the text and the language of a line of the training file
+
+	static String trainingText(String line, boolean onlyAlphabetic) {
+		String text = line;
+		
+		text = text.replaceAll(".*\t", "");
+		
+// Käyttäen pelkkiä kirjaimia
+		if (onlyAlphabetic) {
+			text = text.replaceAll("[^\\p{L}\\p{M}′'’´ʹािीुूृेैोौंँः् া ি ী ু ূ ৃ ে ৈ ো ৌ।্্্я̄\\u07A6\\u07A7\\u07A8\\u07A9\\u07AA\\u07AB\\u07AC\\u07AD\\u07AE\\u07AF\\u07B0\\u0A81\\u0A82\\u0A83\\u0ABC\\u0ABD\\u0ABE\\u0ABF\\u0AC0\\u0AC1\\u0AC2\\u0AC3\\u0AC4\\u0AC5\\u0AC6\\u0AC7\\u0AC8\\u0AC9\\u0ACA\\u0ACB\\u0ACC\\u0ACD\\u0AD0\\u0AE0\\u0AE1\\u0AE2\\u0AE3\\u0AE4\\u0AE5\\u0AE6\\u0AE7\\u0AE8\\u0AE9\\u0AEA\\u0AEB\\u0AEC\\u0AED\\u0AEE\\u0AEF\\u0AF0\\u0AF1]", " ");
+		}
+		text = text.replaceAll("  *", " ");
+		text = text.replaceAll("^ ", "");
+		text = text.replaceAll(" $", "");
+//			System.out.println(text);
+		text = text.replaceAll("^", " ");
+		text = text.replaceAll("$", " ");
+//			System.out.println(text);
+//			text = text.toLowerCase();
+		
+		return text;
+	}
+
+	static String trainingLanguage(String line) {
+		String language = line;
+		language = language.replaceAll("\t.*", "");
+		language = language.replaceAll("\n", "");
+		language = language.replaceAll("\\W", "");
+		return language;
+	}
+	
     private static void readBlacklist(String blacklistFile) {
         File file = new File(blacklistFile);
         
@@ -0,0 +1,65 @@
+/*
+    VectorScoreKernel.java for NADI 2022
+    Copyright 2022 The University of Helsinki
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+import jdk.incubator.vector.*;
+
+// Compiled separately, as it needs the incubator module:
+// javac -encoding UTF-8 --add-modules jdk.incubator.vector -cp . -d . vector/VectorScoreKernel.java
+// and used when TunPRF2 is run with --add-modules jdk.incubator.vector.
+// The lanes do the same IEEE operations as ScalarScoreKernel, so the results are identical.
+
+class VectorScoreKernel implements ScoreKernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	public void addScaled(double[] row, double[] amounts, double factor, int length) {
+		int i = 0;
+		int bound = SPECIES.loopBound(length);
+		for (; i < bound ; i += SPECIES.length()) {
+			DoubleVector scores = DoubleVector.fromArray(SPECIES, row, i);
+			DoubleVector grams = DoubleVector.fromArray(SPECIES, amounts, i);
+			scores.add(grams.mul(factor)).intoArray(row, i);
+		}
+		for (; i < length ; i++) {
+			row[i] = row[i] + amounts[i] * factor;
+		}
+	}
+
+	public void divide(double[] row, double[] divisors, int length) {
+		int i = 0;
+		int bound = SPECIES.loopBound(length);
+		for (; i < bound ; i += SPECIES.length()) {
+			DoubleVector scores = DoubleVector.fromArray(SPECIES, row, i);
+			scores.div(DoubleVector.fromArray(SPECIES, divisors, i)).intoArray(row, i);
+		}
+		for (; i < length ; i++) {
+			row[i] = row[i] / divisors[i];
+		}
+	}
+
+	public void keepSmaller(double[] row, double[] best, double[] winners, double language, int length) {
+		int i = 0;
+		int bound = SPECIES.loopBound(length);
+		for (; i < bound ; i += SPECIES.length()) {
+			DoubleVector scores = DoubleVector.fromArray(SPECIES, row, i);
+			DoubleVector bestScores = DoubleVector.fromArray(SPECIES, best, i);
+			VectorMask<Double> smaller = scores.lt(bestScores);
+			bestScores.blend(scores, smaller).intoArray(best, i);
+			DoubleVector.fromArray(SPECIES, winners, i).blend(language, smaller).intoArray(winners, i);
+		}
+		for (; i < length ; i++) {
+			if (row[i] < best[i]) {
+				best[i] = row[i];
+				winners[i] = language;
+			}
+		}
+	}
+}